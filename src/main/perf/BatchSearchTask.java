@@ -0,0 +1,280 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+// Runs a batch of plain top hits queries (see
+// SearchTask.isBatchable).  The batched variant evaluates them
+// together: all of the batch's terms are looked up once per segment,
+// in sorted order with one TermsEnum per field, and shared by every
+// query using them (via TermQuery's TermContext, so each query's
+// scorer re-positions on the term's TermState instead of seeking the
+// terms dictionary), then all queries score each segment, one
+// collector per query, before moving to the next segment.  Each
+// query still gets its own scorer and postings per segment.  The
+// independent variant just runs each query with IndexSearcher.search,
+// for comparison.  Both variants of a batch are equal tasks, so their
+// checksums are verified against each other:
+final class BatchSearchTask extends Task {
+
+  private final Query[] queries;
+  private final int[] topNs;
+  private final int ord;
+  private final boolean batched;
+  private TopDocs[] hits;
+
+  public BatchSearchTask(List<SearchTask> tasks, int ord) {
+    queries = new Query[tasks.size()];
+    topNs = new int[tasks.size()];
+    for(int i=0;i<queries.length;i++) {
+      queries[i] = tasks.get(i).getQuery();
+      topNs[i] = tasks.get(i).getTopN();
+    }
+    this.ord = ord;
+    this.batched = true;
+  }
+
+  private BatchSearchTask(BatchSearchTask other, boolean batched) {
+    queries = other.queries;
+    topNs = other.topNs;
+    ord = other.ord;
+    this.batched = batched;
+  }
+
+  /** Returns a task running the same queries one by one. */
+  public BatchSearchTask independent() {
+    return new BatchSearchTask(this, false);
+  }
+
+  /** How many queries each batch runs. */
+  public int getQueryCount() {
+    return queries.length;
+  }
+
+  @Override
+  public Task clone() {
+    return new BatchSearchTask(this, batched);
+  }
+
+  @Override
+  public String getCategory() {
+    return batched ? "QueryBatch" : "QueryBatchIndependent";
+  }
+
+  @Override
+  public void go(IndexState state) throws IOException {
+    final IndexSearcher searcher = state.mgr.acquire();
+
+    // For per-category query cache and parallel search stats:
+    currentCategory.set(getCategory());
+
+    try {
+      if (batched) {
+        hits = searchBatched(searcher);
+      } else {
+        hits = new TopDocs[queries.length];
+        for(int i=0;i<queries.length;i++) {
+          hits[i] = searcher.search(queries[i], topNs[i]);
+        }
+      }
+      totalHitCount = 0;
+      for(TopDocs topDocs : hits) {
+        totalHitCount += topDocs.totalHits;
+      }
+    } finally {
+      state.mgr.release(searcher);
+      currentCategory.remove();
+    }
+  }
+
+  private TopDocs[] searchBatched(IndexSearcher searcher) throws IOException {
+    final IndexReader reader = searcher.getIndexReader();
+    final List<LeafReaderContext> leaves = reader.leaves();
+
+    // Look up each distinct term once per segment, in (field, term) order:
+    final TreeSet<Term> terms = new TreeSet<>();
+    for(Query query : queries) {
+      collectTerms(query, terms);
+    }
+    final Map<Term,TermContext> termContexts = new HashMap<>();
+    for(Term term : terms) {
+      termContexts.put(term, new TermContext(reader.getContext()));
+    }
+    for(LeafReaderContext ctx : leaves) {
+      String field = null;
+      TermsEnum termsEnum = null;
+      for(Term term : terms) {
+        if (term.field().equals(field) == false) {
+          field = term.field();
+          final Terms fieldTerms = ctx.reader().terms(field);
+          termsEnum = fieldTerms == null ? null : fieldTerms.iterator();
+        }
+        if (termsEnum != null && termsEnum.seekExact(term.bytes())) {
+          termContexts.get(term).register(termsEnum.termState(), ctx.ord, termsEnum.docFreq(), termsEnum.totalTermFreq());
+        }
+      }
+    }
+
+    final Weight[] weights = new Weight[queries.length];
+    final TopScoreDocCollector[] collectors = new TopScoreDocCollector[queries.length];
+    for(int i=0;i<queries.length;i++) {
+      weights[i] = searcher.createNormalizedWeight(shareTerms(queries[i], termContexts), true);
+      collectors[i] = TopScoreDocCollector.create(Math.max(1, Math.min(topNs[i], reader.maxDoc())));
+    }
+
+    for(LeafReaderContext ctx : leaves) {
+      final Bits liveDocs = ctx.reader().getLiveDocs();
+      for(int i=0;i<queries.length;i++) {
+        final LeafCollector leafCollector;
+        try {
+          leafCollector = collectors[i].getLeafCollector(ctx);
+        } catch (CollectionTerminatedException cte) {
+          continue;
+        }
+        final BulkScorer scorer = weights[i].bulkScorer(ctx);
+        if (scorer != null) {
+          try {
+            scorer.score(leafCollector, liveDocs);
+          } catch (CollectionTerminatedException cte) {
+            // this query is done with this segment
+          }
+        }
+      }
+    }
+
+    final TopDocs[] results = new TopDocs[queries.length];
+    for(int i=0;i<queries.length;i++) {
+      results[i] = collectors[i].topDocs();
+    }
+    return results;
+  }
+
+  private static void collectTerms(Query query, Collection<Term> terms) {
+    if (query instanceof TermQuery) {
+      terms.add(((TermQuery) query).getTerm());
+    } else if (query instanceof BoostQuery) {
+      collectTerms(((BoostQuery) query).getQuery(), terms);
+    } else if (query instanceof BooleanQuery) {
+      for(BooleanClause clause : (BooleanQuery) query) {
+        collectTerms(clause.getQuery(), terms);
+      }
+    }
+  }
+
+  /** Returns the query with each TermQuery using the shared, already looked up TermContext. */
+  private static Query shareTerms(Query query, Map<Term,TermContext> termContexts) {
+    if (query instanceof TermQuery) {
+      final Term term = ((TermQuery) query).getTerm();
+      return new TermQuery(term, termContexts.get(term));
+    } else if (query instanceof BoostQuery) {
+      final BoostQuery boostQuery = (BoostQuery) query;
+      return new BoostQuery(shareTerms(boostQuery.getQuery(), termContexts), boostQuery.getBoost());
+    } else if (query instanceof BooleanQuery) {
+      final BooleanQuery booleanQuery = (BooleanQuery) query;
+      final BooleanQuery.Builder b = new BooleanQuery.Builder();
+      b.setMinimumNumberShouldMatch(booleanQuery.getMinimumNumberShouldMatch());
+      for(BooleanClause clause : booleanQuery) {
+        b.add(shareTerms(clause.getQuery(), termContexts), clause.getOccur());
+      }
+      return b.build();
+    } else {
+      return query;
+    }
+  }
+
+  @Override
+  public void clearResults() {
+    hits = null;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof BatchSearchTask) {
+      final BatchSearchTask otherBatch = (BatchSearchTask) other;
+      // NOTE: not batched, so the batched and independent runs of a
+      // batch must produce the same hits:
+      return ord == otherBatch.ord;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return ord;
+  }
+
+  @Override
+  public String toString() {
+    return (batched ? "QueryBatch" : "QueryBatchIndependent") + ord + "[" + queries.length + "] hits=" + totalHitCount;
+  }
+
+  @Override
+  public long checksum() {
+    // Same as SearchTask's, per query:
+    final long PRIME = 641;
+    long sum = 0;
+    for(TopDocs topDocs : hits) {
+      sum = sum * PRIME + topDocs.totalHits;
+      for(ScoreDoc hit : topDocs.scoreDocs) {
+        sum = sum * PRIME + hit.doc;
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public void printResults(PrintStream out, IndexState state) throws IOException {
+    for(int i=0;i<queries.length;i++) {
+      final List<Integer> docs = new ArrayList<>();
+      for(ScoreDoc hit : hits[i].scoreDocs) {
+        docs.add(hit.doc);
+      }
+      out.println("  q=" + queries[i] + " hits=" + hits[i].totalHits + " docs=" + docs);
+    }
+  }
+}
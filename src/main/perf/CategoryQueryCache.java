@@ -0,0 +1,122 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+
+// LRUQueryCache that also counts hits, misses, newly cached entries
+// and evictions by task category (Task.currentCategory, which
+// ResourceTrackingExecutor passes on to intra-query concurrency
+// jobs); cache activity from threads with no category (e.g. segment
+// warming) is counted under "(other)":
+class CategoryQueryCache extends LRUQueryCache {
+
+  private static final class Counts {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong cached = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+  }
+
+  private final ConcurrentHashMap<String,Counts> byCategory = new ConcurrentHashMap<>();
+  private final QueryCachingPolicy policy;
+  private final String policyName;
+
+  public CategoryQueryCache(int maxSize, long maxRamBytesUsed, String policyName) {
+    super(maxSize, maxRamBytesUsed);
+    this.policyName = policyName;
+    if (policyName.equals("usage")) {
+      policy = new UsageTrackingQueryCachingPolicy();
+    } else if (policyName.equals("always")) {
+      policy = QueryCachingPolicy.ALWAYS_CACHE;
+    } else {
+      throw new IllegalArgumentException("unknown query caching policy \"" + policyName + "\"; expected usage or always");
+    }
+  }
+
+  public QueryCachingPolicy getPolicy() {
+    return policy;
+  }
+
+  private Counts counts() {
+    String category = Task.currentCategory.get();
+    if (category == null) {
+      category = "(other)";
+    }
+    Counts counts = byCategory.get(category);
+    if (counts == null) {
+      counts = new Counts();
+      Counts prev = byCategory.putIfAbsent(category, counts);
+      if (prev != null) {
+        counts = prev;
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  protected void onHit(Object readerCoreKey, Query query) {
+    super.onHit(readerCoreKey, query);
+    counts().hits.incrementAndGet();
+  }
+
+  @Override
+  protected void onMiss(Object readerCoreKey, Query query) {
+    super.onMiss(readerCoreKey, query);
+    counts().misses.incrementAndGet();
+  }
+
+  @Override
+  protected void onDocIdSetCache(Object readerCoreKey, long ramBytesUsed) {
+    super.onDocIdSetCache(readerCoreKey, ramBytesUsed);
+    counts().cached.incrementAndGet();
+  }
+
+  @Override
+  protected void onDocIdSetEviction(Object readerCoreKey, int numEntries, long sumRamBytesUsed) {
+    super.onDocIdSetEviction(readerCoreKey, numEntries, sumRamBytesUsed);
+    // Evictions happen when some thread adds a new entry (or a
+    // segment is closed after an NRT reopen); we charge the
+    // category running on that thread:
+    counts().evictions.addAndGet(numEntries);
+  }
+
+  public void printStats(PrintStream out) {
+    out.println(String.format(Locale.ROOT, "\nQUERY CACHE: policy=%s hits=%d misses=%d cacheCount=%d evictions=%d size=%d ram=%.1f MB",
+                              policyName, getHitCount(), getMissCount(), getCacheCount(), getEvictionCount(), getCacheSize(),
+                              ramBytesUsed()/1024./1024.));
+    for(Map.Entry<String,Counts> ent : new TreeMap<>(byCategory).entrySet()) {
+      Counts counts = ent.getValue();
+      long hits = counts.hits.get();
+      long lookups = hits + counts.misses.get();
+      out.println(String.format(Locale.ROOT, "  %s: hits=%d misses=%d hitRate=%.1f%% cached=%d evictions=%d",
+                                ent.getKey(), hits, counts.misses.get(), lookups == 0 ? 0.0 : 100.0*hits/lookups,
+                                counts.cached.get(), counts.evictions.get()));
+    }
+  }
+}
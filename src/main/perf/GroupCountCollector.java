@@ -0,0 +1,106 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongValues;
+
+// Counts the unique values of a SortedDocValues group field across
+// all hits, like AllGroupsCollector, but without looking up terms:
+// each segment marks its hits' ords in a bitset, which is then mapped
+// to global ords through an OrdinalMap (cached per reader by
+// IndexState).  Docs without a value count as one more group:
+final class GroupCountCollector extends SimpleCollector {
+
+  private final String field;
+  // null if the index has a single segment:
+  private final OrdinalMap ordinalMap;
+  private final FixedBitSet globalOrds;
+
+  private SortedDocValues values;
+  private FixedBitSet segmentOrds;
+  private int segmentIndex = -1;
+  private boolean sawMissing;
+
+  public GroupCountCollector(String field, OrdinalMap ordinalMap) {
+    this.field = field;
+    this.ordinalMap = ordinalMap;
+    if (ordinalMap != null) {
+      globalOrds = new FixedBitSet((int) ordinalMap.getValueCount());
+    } else {
+      globalOrds = null;
+    }
+  }
+
+  @Override
+  protected void doSetNextReader(LeafReaderContext context) throws IOException {
+    finishSegment();
+    values = DocValues.getSorted(context.reader(), field);
+    segmentOrds = new FixedBitSet(Math.max(1, values.getValueCount()));
+    segmentIndex = context.ord;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    if (values.advanceExact(doc)) {
+      segmentOrds.set(values.ordValue());
+    } else {
+      sawMissing = true;
+    }
+  }
+
+  // Folds the current segment's ords into the global ords:
+  private void finishSegment() {
+    if (segmentOrds == null || ordinalMap == null) {
+      return;
+    }
+    final LongValues segmentToGlobal = ordinalMap.getGlobalOrds(segmentIndex);
+    for (int ord = segmentOrds.nextSetBit(0); ord != DocIdSetIterator.NO_MORE_DOCS;
+         ord = ord + 1 < segmentOrds.length() ? segmentOrds.nextSetBit(ord + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+      globalOrds.set((int) segmentToGlobal.get(ord));
+    }
+    segmentOrds = null;
+  }
+
+  /** Returns the number of unique groups among the collected hits. */
+  public int getGroupCount() {
+    finishSegment();
+    final int count;
+    if (ordinalMap != null) {
+      count = globalOrds.cardinality();
+    } else if (segmentOrds != null) {
+      count = segmentOrds.cardinality();
+    } else {
+      count = 0;
+    }
+    return count + (sawMissing ? 1 : 0);
+  }
+
+  @Override
+  public boolean needsScores() {
+    return false;
+  }
+}
@@ -18,20 +18,40 @@ package perf;
  */
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.facet.FacetsConfig;
 import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
 import org.apache.lucene.index.PointValues.IntersectVisitor;
 import org.apache.lucene.index.PointValues.Relation;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.IndexSearcher;
@@ -39,10 +59,12 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
 import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.packed.PackedInts;
 import org.apache.lucene.util.bkd.BKDReader.IntersectState;
 import org.apache.lucene.util.bkd.BKDReader;
 
@@ -52,6 +74,11 @@ class IndexState {
   public final Query groupEndQuery;
   public final FastVectorHighlighter fastHighlighter;
   public final boolean useHighlighter;
+  public final boolean useUnifiedHighlighter;
+  // Only used by the UnifiedHighlighter; a null offset source lets it
+  // pick based on how the field was indexed:
+  private final Analyzer hiliteAnalyzer;
+  private final UnifiedHighlighter.OffsetSource hiliteOffsetSource;
   public final String textFieldName;
   //public int[] docIDToID;
   public final boolean hasDeletions;
@@ -59,12 +86,37 @@ class IndexState {
   public final FacetsConfig facetsConfig;
   // maps facet dimension to method (sortedset, taxonomy)
   public final Map<String,Integer> facetFields;
-  public final Map<Object, ThreadLocal<PKLookupState>> pkLookupStates = new HashMap<>();
-  public final Map<Object, ThreadLocal<PointsPKLookupState>> pointsPKLookupStates = new HashMap<>();
-  private SortedSetDocValuesReaderState sortedSetReaderState;
+  // If non-null, +drillSideways tasks run their per-dimension
+  // sideways searches concurrently on this executor:
+  public ExecutorService drillSidewaysExecutor;
+  // Time budget for top hits searches, in msec, per category, else
+  // defaultTimeBudgetMsec; 0 means no budget:
+  public final Map<String,Long> categoryTimeBudgetsMsec = new HashMap<>();
+  public long defaultTimeBudgetMsec;
+  // Per segment core key, the PK lookup state of each search slot
+  // (Task.threadID, which only one running task holds at a time), so
+  // it's re-used even when each task runs on a new virtual thread:
+  public final Map<Object, ConcurrentHashMap<Integer,PKLookupState>> pkLookupStates = new HashMap<>();
+  public final Map<Object, ConcurrentHashMap<Integer,PointsPKLookupState>> pointsPKLookupStates = new HashMap<>();
+
+  // Per-segment Bloom filters over the id field, keyed by segment core
+  // key, so PK lookups can skip segments.  Built up front for the
+  // initial segments (buildPKFilters), else on first use:
+  private final ConcurrentHashMap<Object,PKBloomFilter> pkFilters = new ConcurrentHashMap<>();
+  private long pkFilterBuildNanos;
+  private long pkFilterRAMBytes;
+  private int pkFilterCount;
 
   public IndexState(ReferenceManager<IndexSearcher> mgr, TaxonomyReader taxoReader, String textFieldName, DirectSpellChecker spellChecker,
                     String hiliteImpl, FacetsConfig facetsConfig, Map<String,Integer> facetFields) throws IOException {
+    this(mgr, taxoReader, textFieldName, spellChecker, hiliteImpl, facetsConfig, facetFields, null, null);
+  }
+
+  /** hiliteOffsetSource is postings, termvectors or analysis (re-analyzes the stored text with analyzer), or null
+   *  to let the UnifiedHighlighter choose; it's only allowed with hiliteImpl UnifiedHighlighter. */
+  public IndexState(ReferenceManager<IndexSearcher> mgr, TaxonomyReader taxoReader, String textFieldName, DirectSpellChecker spellChecker,
+                    String hiliteImpl, FacetsConfig facetsConfig, Map<String,Integer> facetFields,
+                    Analyzer analyzer, String hiliteOffsetSource) throws IOException {
     this.mgr = mgr;
     this.spellChecker = spellChecker;
     this.textFieldName = textFieldName;
@@ -76,39 +128,373 @@ class IndexState {
     if (hiliteImpl.equals("FastVectorHighlighter")) {
       fastHighlighter = new FastVectorHighlighter(true, true);
       useHighlighter = false;
+      useUnifiedHighlighter = false;
     } else if (hiliteImpl.equals("PostingsHighlighter")) {
-      throw new IllegalArgumentException("fix me!  switch to UnifiedHighlighter");
+      throw new IllegalArgumentException("PostingsHighlighter was removed; use -hiliteImpl UnifiedHighlighter -hiliteOffsetSource postings instead");
     } else if (hiliteImpl.equals("Highlighter")) {
       fastHighlighter = null;
       useHighlighter = true;
+      useUnifiedHighlighter = false;
+    } else if (hiliteImpl.equals("UnifiedHighlighter")) {
+      if (analyzer == null) {
+        throw new IllegalArgumentException("UnifiedHighlighter requires the index analyzer");
+      }
+      fastHighlighter = null;
+      useHighlighter = false;
+      useUnifiedHighlighter = true;
     } else {
       throw new IllegalArgumentException("unrecognized -hiliteImpl \"" + hiliteImpl + "\"");
     }
+    hiliteAnalyzer = analyzer;
+    if (hiliteOffsetSource == null) {
+      this.hiliteOffsetSource = null;
+    } else if (useUnifiedHighlighter == false) {
+      throw new IllegalArgumentException("-hiliteOffsetSource only applies to -hiliteImpl UnifiedHighlighter");
+    } else if (hiliteOffsetSource.equals("postings")) {
+      this.hiliteOffsetSource = UnifiedHighlighter.OffsetSource.POSTINGS;
+    } else if (hiliteOffsetSource.equals("termvectors")) {
+      this.hiliteOffsetSource = UnifiedHighlighter.OffsetSource.TERM_VECTORS;
+    } else if (hiliteOffsetSource.equals("analysis")) {
+      this.hiliteOffsetSource = UnifiedHighlighter.OffsetSource.ANALYSIS;
+    } else {
+      throw new IllegalArgumentException("unrecognized -hiliteOffsetSource \"" + hiliteOffsetSource + "\"; must be postings, termvectors or analysis");
+    }
+    // After each reopen, rebuild SSDV facet states for the new reader in the background:
+    mgr.addListener(new ReferenceManager.RefreshListener() {
+        @Override
+        public void beforeRefresh() {
+        }
+
+        @Override
+        public void afterRefresh(boolean didRefresh) throws IOException {
+          if (didRefresh) {
+            rebuildSortedSetReaderStates();
+          }
+        }
+      });
+
     IndexSearcher searcher = mgr.acquire();
     try {
       hasDeletions = searcher.getIndexReader().hasDeletions();
 
       for(LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
-        pkLookupStates.put(ctx.reader().getCoreCacheHelper().getKey(), new ThreadLocal<PKLookupState>());
-        pointsPKLookupStates.put(ctx.reader().getCoreCacheHelper().getKey(), new ThreadLocal<PointsPKLookupState>());
+        pkLookupStates.put(ctx.reader().getCoreCacheHelper().getKey(), new ConcurrentHashMap<Integer,PKLookupState>());
+        pointsPKLookupStates.put(ctx.reader().getCoreCacheHelper().getKey(), new ConcurrentHashMap<Integer,PointsPKLookupState>());
       }
     } finally {
       mgr.release(searcher);
     }
   }
 
-  private final Map<String,SortedSetDocValuesReaderState> ssdvFacetStates = new HashMap<>();
+  // SSDV facet states (ordinal maps) must match the reader being
+  // searched, so they are cached per reader (and facet field).  A
+  // reader's states are evicted when the reader closes, i.e. once the
+  // ReferenceManager released it and no search is still using it
+  // (see getReaderKey for readers without a cache key):
+  private final Map<Object,Map<String,FutureTask<SortedSetDocValuesReaderState>>> ssdvFacetStates = new HashMap<>();
+
+  // All facet fields ever requested, to rebuild after reopen:
+  private final Set<String> ssdvFacetFields = ConcurrentHashMap.newKeySet();
+
+  private volatile Thread ssdvRebuildThread;
+
+  private final ExecutorService ssdvRebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "SSDV state rebuild");
+        thread.setDaemon(true);
+        ssdvRebuildThread = thread;
+        return thread;
+      }
+    });
+
+  private int ssdvRebuildCount;
+  private long ssdvRebuildNanos;
+  private long ssdvRebuildMaxNanos;
+  private int ssdvOnDemandCount;
+  private long ssdvOnDemandNanos;
+
+  /** Returns the SSDV facet state for this field, for this reader.  Builds it (or waits for the background rebuild)
+   *  if it's not cached yet. */
+  public SortedSetDocValuesReaderState getSortedSetReaderState(IndexReader reader, String facetGroupField) throws IOException {
+    ssdvFacetFields.add(facetGroupField);
+    final FutureTask<SortedSetDocValuesReaderState> future = getSortedSetReaderStateFuture(reader, facetGroupField);
+    // Builds it now, unless it's already built or being built (e.g. in the background), then waits for it:
+    future.run();
+    return getResult(future);
+  }
+
+  private static <T> T getResult(FutureTask<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      throw new RuntimeException(ie);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof IOException) {
+        throw (IOException) ee.getCause();
+      }
+      throw new RuntimeException(ee.getCause());
+    }
+  }
+
+  private synchronized FutureTask<SortedSetDocValuesReaderState> getSortedSetReaderStateFuture(final IndexReader reader, final String facetGroupField) {
+    final Object readerKey = getReaderKey(reader);
+    Map<String,FutureTask<SortedSetDocValuesReaderState>> byField = ssdvFacetStates.get(readerKey);
+    if (byField == null) {
+      byField = new HashMap<>();
+      ssdvFacetStates.put(readerKey, byField);
+      if (readerKey != reader) {
+        reader.getReaderCacheHelper().addClosedListener(new IndexReader.ClosedListener() {
+            @Override
+            public void onClose(IndexReader.CacheKey key) {
+              synchronized(IndexState.this) {
+                ssdvFacetStates.remove(key);
+              }
+            }
+          });
+      }
+    }
+    FutureTask<SortedSetDocValuesReaderState> future = byField.get(facetGroupField);
+    if (future == null) {
+      // NOTE: FutureTask.run is a no-op once another thread ran it, so whoever gets here first builds it:
+      future = new FutureTask<>(new Callable<SortedSetDocValuesReaderState>() {
+          @Override
+          public SortedSetDocValuesReaderState call() throws IOException {
+            final long t0 = System.nanoTime();
+            SortedSetDocValuesReaderState state = new DefaultSortedSetDocValuesReaderState(reader, facetGroupField);
+            if (Thread.currentThread() != ssdvRebuildThread) {
+              // Not in the background: a search thread paid for this
+              final long nanos = System.nanoTime() - t0;
+              synchronized(IndexState.this) {
+                ssdvOnDemandCount++;
+                ssdvOnDemandNanos += nanos;
+              }
+            }
+            return state;
+          }
+        });
+      byField.put(facetGroupField, future);
+    }
+    return future;
+  }
+
+  // Called after a reopen: builds the states for all known facet fields for the new reader:
+  private void rebuildSortedSetReaderStates() throws IOException {
+    if (ssdvFacetFields.isEmpty() || ssdvRebuildExecutor.isShutdown()) {
+      return;
+    }
+    final IndexSearcher searcher = mgr.acquire();
+    ssdvRebuildExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final IndexReader reader = searcher.getIndexReader();
+            final long t0 = System.nanoTime();
+            for(String field : ssdvFacetFields) {
+              getSortedSetReaderStateFuture(reader, field).run();
+            }
+            final long nanos = System.nanoTime() - t0;
+            synchronized(IndexState.this) {
+              ssdvRebuildCount++;
+              ssdvRebuildNanos += nanos;
+              ssdvRebuildMaxNanos = Math.max(ssdvRebuildMaxNanos, nanos);
+            }
+          } finally {
+            try {
+              mgr.release(searcher);
+            } catch (IOException ioe) {
+              throw new RuntimeException(ioe);
+            }
+          }
+        }
+      });
+  }
+
+  /** Waits for any background SSDV state rebuild to finish, and drops all cached SSDV states and group ordinal maps.  Call this before
+   *  closing the ReferenceManager. */
+  public void close() throws InterruptedException {
+    ssdvRebuildExecutor.shutdown();
+    ssdvRebuildExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    synchronized(this) {
+      ssdvFacetStates.clear();
+    }
+    groupOrdinalMaps.clear();
+  }
+
+  /** Prints how long SSDV facet states took to rebuild after each reopen. */
+  public synchronized void printSortedSetReaderStateStats(PrintStream out) {
+    if (ssdvRebuildCount != 0 || ssdvOnDemandCount != 0) {
+      out.println(String.format(Locale.ROOT, "\nSSDV STATE: %d rebuilds after reopen, avg %.1f msec, max %.1f msec; %d built on demand, avg %.1f msec",
+                                ssdvRebuildCount, ssdvRebuildCount == 0 ? 0.0 : ssdvRebuildNanos/1000000.0/ssdvRebuildCount,
+                                ssdvRebuildMaxNanos/1000000.0,
+                                ssdvOnDemandCount, ssdvOnDemandCount == 0 ? 0.0 : ssdvOnDemandNanos/1000000.0/ssdvOnDemandCount));
+    }
+  }
+
+  // Group field ordinal maps, per reader and field, for
+  // GroupCountCollector.  The first task needing one builds it, and
+  // only tasks needing the same one wait for it:
+  private final ConcurrentHashMap<Object,ConcurrentHashMap<String,FutureTask<OrdinalMap>>> groupOrdinalMaps = new ConcurrentHashMap<>();
 
-  public synchronized SortedSetDocValuesReaderState getSortedSetReaderState(String facetGroupField) throws IOException {
-    SortedSetDocValuesReaderState result = ssdvFacetStates.get(facetGroupField);
-    if (result == null) {
-      IndexSearcher searcher = mgr.acquire();
-      result = new DefaultSortedSetDocValuesReaderState(searcher.getIndexReader(), facetGroupField);
-      // NOTE: do not release the acquired searcher here!  Really we should have a close() in this class where we release...
-      ssdvFacetStates.put(facetGroupField, result);
+  // Top level reader caches are keyed by the reader's cache key, and
+  // evicted when the reader closes.  ShardedIndexSearcher's MultiReader
+  // has no reader CacheHelper (and a CacheKey can't be created outside
+  // Lucene), so it is its own key: it's open for the whole run, and
+  // close() drops its entries:
+  private static Object getReaderKey(IndexReader reader) {
+    final IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+    if (cacheHelper == null) {
+      return reader;
+    } else {
+      return cacheHelper.getKey();
     }
+  }
 
-    return result;
+  /** Returns the OrdinalMap for this SortedDocValues group field and reader, building it on first use, or null if the
+   *  reader has only one segment. */
+  public OrdinalMap getGroupOrdinalMap(final IndexReader reader, final String field) throws IOException {
+    if (reader.leaves().size() <= 1) {
+      return null;
+    }
+    final Object readerKey = getReaderKey(reader);
+    ConcurrentHashMap<String,FutureTask<OrdinalMap>> byField = groupOrdinalMaps.get(readerKey);
+    if (byField == null) {
+      byField = groupOrdinalMaps.computeIfAbsent(readerKey, new Function<Object,ConcurrentHashMap<String,FutureTask<OrdinalMap>>>() {
+          @Override
+          public ConcurrentHashMap<String,FutureTask<OrdinalMap>> apply(Object newKey) {
+            if (newKey != reader) {
+              reader.getReaderCacheHelper().addClosedListener(new IndexReader.ClosedListener() {
+                  @Override
+                  public void onClose(IndexReader.CacheKey key) {
+                    groupOrdinalMaps.remove(key);
+                  }
+                });
+            }
+            return new ConcurrentHashMap<>();
+          }
+        });
+    }
+    FutureTask<OrdinalMap> future = byField.get(field);
+    if (future == null) {
+      final FutureTask<OrdinalMap> newFuture = new FutureTask<>(new Callable<OrdinalMap>() {
+          @Override
+          public OrdinalMap call() throws IOException {
+            final List<LeafReaderContext> leaves = reader.leaves();
+            final SortedDocValues[] values = new SortedDocValues[leaves.size()];
+            for(int i=0;i<values.length;i++) {
+              values[i] = DocValues.getSorted(leaves.get(i).reader(), field);
+            }
+            return OrdinalMap.build(readerKey == reader ? null : (IndexReader.CacheKey) readerKey, values, PackedInts.DEFAULT);
+          }
+        });
+      future = byField.putIfAbsent(field, newFuture);
+      if (future == null) {
+        future = newFuture;
+      }
+    }
+    // Builds it now, unless it's already built or being built, then waits for it:
+    future.run();
+    return getResult(future);
+  }
+
+  /** Returns a new UnifiedHighlighter for this searcher, using the configured offset source. */
+  public UnifiedHighlighter newUnifiedHighlighter(IndexSearcher searcher) {
+    if (hiliteOffsetSource == null) {
+      return new UnifiedHighlighter(searcher, hiliteAnalyzer);
+    } else {
+      return new UnifiedHighlighter(searcher, hiliteAnalyzer) {
+        @Override
+        protected OffsetSource getOffsetSource(String field) {
+          return hiliteOffsetSource;
+        }
+      };
+    }
+  }
+
+  /** Builds the id field Bloom filters for all segments of the current searcher, so PK lookups don't pay for them. */
+  public void buildPKFilters() throws IOException {
+    final IndexSearcher searcher = mgr.acquire();
+    try {
+      for(LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+        getPKFilter(ctx.reader());
+      }
+    } finally {
+      mgr.release(searcher);
+    }
+  }
+
+  /** Returns the id field Bloom filter for this segment, building it if it wasn't built yet.  Only threads looking
+   *  up the same, not yet built segment wait for each other. */
+  public PKBloomFilter getPKFilter(final LeafReader reader) throws IOException {
+    final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+    final PKBloomFilter filter = pkFilters.get(cacheHelper.getKey());
+    if (filter != null) {
+      return filter;
+    }
+    try {
+      return pkFilters.computeIfAbsent(cacheHelper.getKey(), new Function<Object,PKBloomFilter>() {
+          @Override
+          public PKBloomFilter apply(Object key) {
+            final PKBloomFilter filter;
+            try {
+              filter = new PKBloomFilter(reader, "id");
+            } catch (IOException ioe) {
+              throw new UncheckedIOException(ioe);
+            }
+            synchronized(IndexState.this) {
+              pkFilterBuildNanos += filter.getBuildNanos();
+              pkFilterRAMBytes += filter.ramBytesUsed();
+              pkFilterCount++;
+            }
+            cacheHelper.addClosedListener(new IndexReader.ClosedListener() {
+                @Override
+                public void onClose(IndexReader.CacheKey key) {
+                  pkFilters.remove(key);
+                }
+              });
+            return filter;
+          }
+        });
+    } catch (UncheckedIOException uioe) {
+      throw uioe.getCause();
+    }
+  }
+
+  /** Prints how many PK Bloom filters were built, their total RAM and build time. */
+  public synchronized void printPKFilterStats(PrintStream out) {
+    if (pkFilterCount != 0) {
+      out.println(String.format(Locale.ROOT, "\nPK FILTERS: %d segments, %.1f KB RAM, %.1f msec to build",
+                                pkFilterCount, pkFilterRAMBytes/1024.0, pkFilterBuildNanos/1000000.0));
+    }
+  }
+
+  // +filter=X% percentage -> shared, cached filter:
+  private final Map<Double,PreComputedRandomFilter> randomFilters = new TreeMap<>();
+
+  /** Returns the time budget for this category's tasks, in msec, or 0 if they have none. */
+  public long getTimeBudgetMsec(String category) {
+    final Long budget = categoryTimeBudgetsMsec.get(category);
+    return budget == null ? defaultTimeBudgetMsec : budget;
+  }
+
+  /** Returns the shared filter accepting this percentage of docs. */
+  public synchronized PreComputedRandomFilter getRandomFilter(double pctKeep) {
+    PreComputedRandomFilter filter = randomFilters.get(pctKeep);
+    if (filter == null) {
+      filter = new PreComputedRandomFilter(pctKeep);
+      randomFilters.put(pctKeep, filter);
+    }
+    return filter;
+  }
+
+  /** Prints the per-segment DocIdSets each +filter= filter built. */
+  public synchronized void printRandomFilterStats(PrintStream out) {
+    if (randomFilters.isEmpty() == false) {
+      out.println("\nFILTER CACHE:");
+      for(PreComputedRandomFilter filter : randomFilters.values()) {
+        filter.printStats(out);
+      }
+    }
   }
 
   /** Holds re-used thread-private classes for postings primary key lookup for one LeafReader */
@@ -158,9 +544,66 @@ class IndexState {
     }
   }
 
+  /** Resolves a sorted batch of int ids in a single BKD traversal, pruning cells that hold none of them. */
+  public static class MultiPKIntersectVisitor implements IntersectVisitor {
+    private int[] values = new int[0];
+    private int[] answers = new int[0];
+    private int count;
+    private int found;
+    private Bits liveDocs;
+
+    /** values[0..count) must be sorted */
+    public void reset(int[] values, int count, Bits liveDocs) {
+      this.values = values;
+      this.count = count;
+      this.liveDocs = liveDocs;
+      if (answers.length < count) {
+        answers = new int[values.length];
+      }
+      Arrays.fill(answers, 0, count, -1);
+      found = 0;
+    }
+
+    /** Returns the live docID for values[i], or -1 if this segment doesn't have it. */
+    public int answer(int i) {
+      return answers[i];
+    }
+
+    @Override
+    public void visit(int docID) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visit(int docID, byte[] packedValue) throws IOException {
+      final int i = Arrays.binarySearch(values, 0, count, IntPoint.decodeDimension(packedValue, 0));
+      if (i >= 0 && answers[i] == -1 && (liveDocs == null || liveDocs.get(docID))) {
+        answers[i] = docID;
+        found++;
+      }
+    }
+
+    @Override
+    public Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+      if (found == count) {
+        // All resolved
+        return Relation.CELL_OUTSIDE_QUERY;
+      }
+      int i = Arrays.binarySearch(values, 0, count, IntPoint.decodeDimension(minPackedValue, 0));
+      if (i < 0) {
+        i = -i-1;
+      }
+      if (i < count && values[i] <= IntPoint.decodeDimension(maxPackedValue, 0)) {
+        return Relation.CELL_CROSSES_QUERY;
+      }
+      return Relation.CELL_OUTSIDE_QUERY;
+    }
+  }
+
   /** Holds re-used thread-private classes for points primary key lookup for one LeafReader */
   public static class PointsPKLookupState {
     public final PKIntersectVisitor visitor;
+    public final MultiPKIntersectVisitor multiVisitor = new MultiPKIntersectVisitor();
     public final IntersectState state;
     public final Bits liveDocs;
     public final BKDReader bkdReader;
@@ -29,19 +29,63 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.util.BytesRef;
 
-// Serves up tasks from locally loaded list:
+// Serves up tasks from locally loaded list.  By default this is
+// closed loop: each thread takes the next task as soon as it
+// finishes the last one.  With a target QPS it is open loop instead:
+// task N is released at its scheduled arrival time (constant or
+// Poisson inter-arrival times), and its recvTimeNS is that scheduled
+// time, so time spent waiting for a free thread counts as queue time:
 class LocalTaskSource implements TaskSource {
   private final List<Task> tasks;
   private final AtomicInteger nextTask = new AtomicInteger();
 
+  // Only used in open loop mode: arrival time of each task, in nanos
+  // relative to the first nextTask call:
+  private final long[] arrivalOffsetsNS;
+  private final AtomicLong startNS = new AtomicLong();
+
+  // Only used with streaming verification: the first finished
+  // instance of each unique task, which keeps its results:
+  private final ConcurrentHashMap<Task,Task> firstInstances;
+  // ... and any later instance whose checksum didn't match:
+  private final ConcurrentLinkedQueue<Task> verifyFailures;
+
   public LocalTaskSource(IndexState indexState, TaskParser taskParser, String tasksFile,
                          Random staticRandom, Random random, int numTaskPerCat, int taskRepeatCount, boolean doPKLookup) throws IOException, ParseException {
+    this(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup, false, false, false, 0, 0.0, false, false);
+  }
+
+  /** If targetQPS is > 0, tasks are released open loop at that rate, with exponentially distributed (Poisson
+   *  process) inter-arrival times if poissonArrivals is true, else constant ones.  If streamVerify is true,
+   *  each finished task's checksum is checked against the first finished instance of the same task right away,
+   *  and its results are then dropped, so heap use doesn't grow with taskRepeatCount.  If doPKLookupBatched is true,
+   *  each PK lookup task also gets a batched copy looking up the same ids, and likewise a copy using per-segment
+   *  Bloom filters if doPKLookupFiltered is true.  If doPointsPKLookup is true, batched lookups of int point ids are
+   *  added as well.  If batchQueries is > 0, the plain top hits search tasks are also grouped into batches of that
+   *  many queries, each run both batched and independently (see BatchSearchTask). */
+  public LocalTaskSource(IndexState indexState, TaskParser taskParser, String tasksFile,
+                         Random staticRandom, Random random, int numTaskPerCat, int taskRepeatCount, boolean doPKLookup,
+                         boolean doPKLookupBatched, boolean doPKLookupFiltered, boolean doPointsPKLookup, int batchQueries,
+                         double targetQPS, boolean poissonArrivals, boolean streamVerify) throws IOException, ParseException {
+
+    if (streamVerify) {
+      firstInstances = new ConcurrentHashMap<>();
+      verifyFailures = new ConcurrentLinkedQueue<>();
+    } else {
+      firstInstances = null;
+      verifyFailures = null;
+    }
 
     final List<Task> loadedTasks = loadTasks(taskParser, tasksFile);
     Collections.shuffle(loadedTasks, staticRandom);
@@ -57,13 +101,24 @@ class LocalTaskSource implements TaskSource {
 
     // Add PK tasks
     //System.out.println("WARNING: skip PK tasks");
-    if (doPKLookup) {
+    if (doPKLookup || doPointsPKLookup) {
       final int numPKTasks = (int) Math.min(maxDoc/6000., numTaskPerCat);
       final Set<BytesRef> pkSeenIDs = new HashSet<BytesRef>();
       final Set<Integer> pkSeenIntIDs = new HashSet<Integer>();
       for(int idx=0;idx<numPKTasks;idx++) {
-        prunedTasks.add(new PKLookupTask(maxDoc, staticRandom, 4000, pkSeenIDs, idx));
-        //prunedTasks.add(new PointsPKLookupTask(maxDoc, staticRandom, 4000, pkSeenIntIDs, idx));
+        if (doPKLookup) {
+          final PKLookupTask pkTask = new PKLookupTask(maxDoc, staticRandom, 4000, pkSeenIDs, idx);
+          prunedTasks.add(pkTask);
+          if (doPKLookupBatched) {
+            prunedTasks.add(pkTask.batched());
+          }
+          if (doPKLookupFiltered) {
+            prunedTasks.add(pkTask.filtered());
+          }
+        }
+        if (doPointsPKLookup) {
+          prunedTasks.add(new PointsPKLookupTask(maxDoc, staticRandom, 4000, pkSeenIntIDs, idx));
+        }
       }
       /*
       final Set<BytesRef> pkSeenSingleIDs = new HashSet<BytesRef>();
@@ -73,6 +128,22 @@ class LocalTaskSource implements TaskSource {
       */
     }
 
+    if (batchQueries > 0) {
+      final List<SearchTask> batchable = new ArrayList<SearchTask>();
+      for(Task task : prunedTasks) {
+        if (task instanceof SearchTask && ((SearchTask) task).isBatchable()) {
+          batchable.add((SearchTask) task);
+        }
+      }
+      int batchCount = 0;
+      for(int start=0;start+batchQueries<=batchable.size();start+=batchQueries) {
+        final BatchSearchTask batch = new BatchSearchTask(batchable.subList(start, start+batchQueries), batchCount++);
+        prunedTasks.add(batch);
+        prunedTasks.add(batch.independent());
+      }
+      System.out.println(batchCount + " query batches of " + batchQueries + " (from " + batchable.size() + " batchable tasks)");
+    }
+
     tasks = new ArrayList<Task>();
 
     // Copy the pruned tasks multiple times, shuffling the order each time:
@@ -83,6 +154,23 @@ class LocalTaskSource implements TaskSource {
       }
     }
     System.out.println("TASK LEN=" + tasks.size());
+
+    if (targetQPS > 0) {
+      arrivalOffsetsNS = new long[tasks.size()];
+      final double meanIntervalNS = TimeUnit.SECONDS.toNanos(1) / targetQPS;
+      double offsetNS = 0;
+      for(int i=0;i<arrivalOffsetsNS.length;i++) {
+        arrivalOffsetsNS[i] = (long) offsetNS;
+        if (poissonArrivals) {
+          offsetNS += -Math.log(1.0 - random.nextDouble()) * meanIntervalNS;
+        } else {
+          offsetNS += meanIntervalNS;
+        }
+      }
+      System.out.println("Open loop: target QPS " + targetQPS + " with " + (poissonArrivals ? "poisson" : "constant") + " arrivals");
+    } else {
+      arrivalOffsetsNS = null;
+    }
   }
 
   @Override
@@ -121,11 +209,54 @@ class LocalTaskSource implements TaskSource {
     if (next >= tasks.size()) {
       return null;
     }
-    return tasks.get(next);
+    final Task task = tasks.get(next);
+    if (arrivalOffsetsNS != null) {
+      startNS.compareAndSet(0, System.nanoTime());
+      final long arrivalNS = startNS.get() + arrivalOffsetsNS[next];
+      // Wait until the task "arrives"; if we are already past that,
+      // the task has been queued and runs right away:
+      while (true) {
+        final long waitNS = arrivalNS - System.nanoTime();
+        if (waitNS <= 0) {
+          break;
+        }
+        LockSupport.parkNanos(waitNS);
+      }
+      task.recvTimeNS = arrivalNS;
+    }
+    return task;
   }
 
   @Override
   public void taskDone(Task task, long queueTimeNS, int toalHitCount) {
+    if (firstInstances == null || task.timedOut) {
+      return;
+    }
+    final Task first = firstInstances.putIfAbsent(task, task);
+    if (first != null) {
+      if (first.checksum() == task.checksum()) {
+        task.clearResults();
+        task.sameResultsAs = first;
+      } else {
+        // Keep both results, for printing:
+        verifyFailures.add(task);
+      }
+    }
+  }
+
+  /** Returns true if streaming verification is enabled. */
+  public boolean isStreamVerify() {
+    return firstInstances != null;
+  }
+
+  /** With streaming verification, returns the task instances whose checksum differed from the first instance. */
+  public List<Task> getVerifyFailures() {
+    return new ArrayList<Task>(verifyFailures);
+  }
+
+  /** With streaming verification, returns the first finished instance of this task. */
+  public Task getFirstInstance(Task task) {
+    return firstInstances.get(task);
   }
 
   static List<Task> loadTasks(TaskParser taskParser, String filePath) throws IOException, ParseException {
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -43,6 +44,7 @@ import org.apache.lucene.codecs.DocValuesFormat;
 import org.apache.lucene.codecs.PostingsFormat;
 import org.apache.lucene.codecs.lucene70.Lucene70Codec;
 import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LeafReader;
@@ -52,6 +54,7 @@ import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spell.DirectSpellChecker;
@@ -79,9 +82,11 @@ public class NRTPerfTest {
 	static final class MergedReaderWarmer extends IndexWriter.IndexReaderWarmer {
 
 		private final String field;
+		private final CategoryQueryCache queryCache;
 
-		MergedReaderWarmer(String field) {
+		MergedReaderWarmer(String field, CategoryQueryCache queryCache) {
 			this.field = field;
+			this.queryCache = queryCache;
 		}
 
 		@Override
@@ -89,7 +94,7 @@ public class NRTPerfTest {
 			final long t0 = System.currentTimeMillis();
 			//System.out.println("DO WARM: " + reader);
 			IndexSearcher s = new IndexSearcher(reader);
-                        s.setQueryCache(null); // don't bench the cache
+			SearchPerfTest.setQueryCache(s, queryCache);
 			s.search(new TermQuery(new Term(field, "10")), 10);
 
 			// Warm terms dict & index:
@@ -248,6 +253,18 @@ public class NRTPerfTest {
 			throw new FileNotFoundException("tasks file not found " + tasksFile);
 		}
 
+		// Optional: threads each query may use to search its segments concurrently:
+		final int searchConcurrency = args.length > 15 ? Integer.parseInt(args[15]) : 0;
+
+		// Optional: query cache, either "none" (the default) or policy[:maxSize[:maxRAMMB]] with policy usage or always;
+		// the cache is shared by all searchers and the merged segment warmer:
+		final CategoryQueryCache queryCache = args.length > 16 ? parseQueryCache(args[16]) : null;
+
+		// Optional: queries whose summed per-segment cost is below this run inline instead of concurrently:
+		if (args.length > 17) {
+			SlicedIndexSearcher.minParallelCost = Long.parseLong(args[17]);
+		}
+
 		final boolean hasProcMemInfo = Files.exists(Paths.get("/proc/meminfo"));
 
 		System.out.println("DIR=" + dirImpl);
@@ -261,6 +278,10 @@ public class NRTPerfTest {
 		System.out.println("Reopen/sec=" + reopenPerSec);
 		System.out.println("Mode=" + mode);
 		System.out.println("tasksFile=" + tasksFile);
+		System.out.println("SearchConcurrency=" + searchConcurrency + "; max docs per slice " + SlicedIndexSearcher.maxDocsPerSlice +
+				"; max segments per slice " + SlicedIndexSearcher.maxSegmentsPerSlice +
+				"; min parallel cost " + SlicedIndexSearcher.minParallelCost);
+		System.out.println("QueryCache=" + (args.length > 16 ? args[16] : "none"));
 
 		System.out.println("Record stats every " + statsEverySec + " seconds");
 		final int count = (int) ((runTimeSec / statsEverySec) + 2);
@@ -350,7 +371,7 @@ public class NRTPerfTest {
 		final ConcurrentMergeScheduler cms = (ConcurrentMergeScheduler) conf.getMergeScheduler();
 		cms.setMaxMergesAndThreads(4, 1);
 
-		conf.setMergedSegmentWarmer(new MergedReaderWarmer(field));
+		conf.setMergedSegmentWarmer(new MergedReaderWarmer(field, queryCache));
 
 		final IndexWriter w = new IndexWriter(dir, conf);
 		// w.setInfoStream(System.out);
@@ -372,7 +393,15 @@ public class NRTPerfTest {
                                                              (float) (docsPerSec / numIndexThreads), updatesListener, -1.0, w.maxDoc());
 
 		// NativePosixUtil.mlockTermsDict(startR, "id");
-		final SearcherManager manager = new SearcherManager(w, null);
+		final ExecutorService searchExecutor = searchConcurrency > 0 ? new ResourceTrackingExecutor(searchConcurrency) : null;
+		final SearcherManager manager = new SearcherManager(w, new SearcherFactory() {
+			@Override
+			public IndexSearcher newSearcher(IndexReader reader, IndexReader previous) {
+				final IndexSearcher s = SlicedIndexSearcher.create(reader, searchExecutor);
+				SearchPerfTest.setQueryCache(s, queryCache);
+				return s;
+			}
+		});
 		IndexSearcher s = manager.acquire();
 		try {
 			System.out.println("Reader=" + s.getIndexReader());
@@ -393,7 +422,8 @@ public class NRTPerfTest {
 		System.out.println("Task repeat count 1");
 		System.out.println("Tasks file " + tasksFile);
 		System.out.println("Num task per cat 20");
-		final TaskThreads taskThreads = new TaskThreads(tasks, indexState, numSearchThreads);
+		final TaskStats taskStats = new TaskStats(numSearchThreads);
+		final TaskThreads taskThreads = new TaskThreads(tasks, indexState, numSearchThreads, TaskThreads.ExecutionMode.THREADS, taskStats);
 
 		final ReopenThread reopenThread = new ReopenThread(reopenPerSec, manager, reopensByTime, runTimeSec);
 		reopenThread.setName("ReopenThread");
@@ -403,6 +433,7 @@ public class NRTPerfTest {
 		indexThreads.start();
 		reopenThread.start();
 		taskThreads.start();
+		final long startNanos = System.nanoTime();
 
 		Thread.currentThread().setPriority(5+Thread.currentThread().getPriority());
 		System.out.println("TIMER PRI " + Thread.currentThread().getPriority());
@@ -442,6 +473,7 @@ public class NRTPerfTest {
 		}
 
 		taskThreads.stop();
+		final long endNanos = System.nanoTime();
 		reopenThread.join();
 		indexThreads.stop();
 
@@ -455,7 +487,19 @@ public class NRTPerfTest {
 					TimeUnit.NANOSECONDS.toMillis(totalUpdateTimeByTime[i].get())));
 		}
 
+		taskStats.printSummary(System.out, endNanos - startNanos);
+		if (queryCache != null) {
+			queryCache.printStats(System.out);
+		}
+		if (SlicedIndexSearcher.minParallelCost > 0) {
+			SlicedIndexSearcher.printDecisionStats(System.out);
+		}
+
+		indexState.close();
 		manager.close();
+		if (searchExecutor != null) {
+			searchExecutor.shutdown();
+		}
 		if (doCommit) {
                   w.close();
 		} else {
@@ -463,6 +507,19 @@ public class NRTPerfTest {
 		}
 	}
 
+	private static CategoryQueryCache parseQueryCache(String spec) {
+		if (spec.equals("none")) {
+			return null;
+		}
+		final String[] parts = spec.split(":");
+		if (parts.length > 3) {
+			throw new IllegalArgumentException("query cache must be none or policy[:maxSize[:maxRAMMB]]; got: " + spec);
+		}
+		final int maxSize = parts.length > 1 ? Integer.parseInt(parts[1]) : 1000;
+		final double maxRAMMB = parts.length > 2 ? Double.parseDouble(parts[2]) : 32.0;
+		return new CategoryQueryCache(maxSize, (long) (maxRAMMB*1024*1024), parts[0]);
+	}
+
 	private static long getLinuxDirtyBytes() throws Exception {
 		final BufferedReader br = new BufferedReader(new FileReader("/proc/meminfo"), 4096);
 		int dirtyKB = -1;
@@ -0,0 +1,106 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+// In-memory Bloom filter over all terms of one field in one segment,
+// so a primary key lookup can skip segments that definitely don't
+// have the id without seeking their terms dictionary.  Uses ~10 bits
+// per term and 7 probes (~1% false positive rate), derived from two
+// murmur3 hashes:
+final class PKBloomFilter {
+
+  private static final int BITS_PER_TERM = 10;
+  private static final int NUM_PROBES = 7;
+  private static final int SEED1 = 0x9747b28c;
+  private static final int SEED2 = 0x5bd1e995;
+
+  private final long[] bits;
+  private final long mask;
+  private final int numTerms;
+  private final long buildNanos;
+
+  public PKBloomFilter(LeafReader reader, String field) throws IOException {
+    final long t0 = System.nanoTime();
+    final Terms terms = reader.terms(field);
+    long termCount = terms == null ? 0 : terms.size();
+    if (termCount == -1) {
+      // Codec doesn't know: size for maxDoc terms
+      termCount = reader.maxDoc();
+    }
+
+    // Round up to a power of 2 so probes are masked instead of mod'd:
+    long numBits = Math.max(64, termCount * BITS_PER_TERM);
+    numBits = Long.highestOneBit(numBits - 1) << 1;
+    bits = new long[(int) (numBits >>> 6)];
+    mask = numBits - 1;
+
+    int count = 0;
+    if (terms != null) {
+      TermsEnum termsEnum = terms.iterator();
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        add(term);
+        count++;
+      }
+    }
+    numTerms = count;
+    buildNanos = System.nanoTime() - t0;
+  }
+
+  private void add(BytesRef term) {
+    final int h1 = StringHelper.murmurhash3_x86_32(term, SEED1);
+    final int h2 = StringHelper.murmurhash3_x86_32(term, SEED2);
+    for(int i=0;i<NUM_PROBES;i++) {
+      final long bit = ((h1 + (long) i * h2) & 0xFFFFFFFFL) & mask;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /** Returns false if the term is definitely not in this segment. */
+  public boolean mayContain(BytesRef term) {
+    final int h1 = StringHelper.murmurhash3_x86_32(term, SEED1);
+    final int h2 = StringHelper.murmurhash3_x86_32(term, SEED2);
+    for(int i=0;i<NUM_PROBES;i++) {
+      final long bit = ((h1 + (long) i * h2) & 0xFFFFFFFFL) & mask;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long ramBytesUsed() {
+    return 8L * bits.length;
+  }
+
+  public long getBuildNanos() {
+    return buildNanos;
+  }
+
+  public int getNumTerms() {
+    return numTerms;
+  }
+}
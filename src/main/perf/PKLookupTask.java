@@ -20,7 +20,9 @@ package perf;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -33,25 +35,82 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 
+// Looks up a set of random ids.  By default each id is looked up on
+// its own, seeking every segment until a live hit is found.  The
+// batched variant walks each segment's TermsEnum once over the ids in
+// sorted order, so consecutive seeks reuse already loaded terms
+// blocks, skipping ids already found in a prior segment.  The
+// filtered variant first checks each segment's PKBloomFilter and only
+// seeks segments that may have the id:
 final class PKLookupTask extends Task {
   private final BytesRef[] ids;
-  private final int[] answers;
+  // Same ids, sorted, for equals/hashCode:
+  private final BytesRef[] sortedIDs;
+  private int[] answers;
   private final int ord;
+  // Only set when batched: indices into ids, in sorted id order:
+  private final int[] sortedIndices;
+  private final boolean useFilter;
 
   @Override
   public String getCategory() {
-    return "PKLookup";
+    if (useFilter) {
+      return "PKLookupFiltered";
+    } else if (sortedIndices != null) {
+      return "PKLookupBatched";
+    } else {
+      return "PKLookup";
+    }
   }
 
   private PKLookupTask(PKLookupTask other) {
+    this(other, other.sortedIndices, other.useFilter);
+  }
+
+  private PKLookupTask(PKLookupTask other, int[] sortedIndices, boolean useFilter) {
     ids = other.ids;
+    sortedIDs = other.sortedIDs;
     ord = other.ord;
+    this.sortedIndices = sortedIndices;
+    this.useFilter = useFilter;
     answers = new int[ids.length];
     Arrays.fill(answers, -1);
   }
 
+  /** Returns a task looking up the same ids as this one, one at a time, skipping segments whose Bloom filter
+   *  rules out the id. */
+  public PKLookupTask filtered() {
+    return new PKLookupTask(this, null, true);
+  }
+
+  /** Returns a batched task looking up the same ids as this one. */
+  public PKLookupTask batched() {
+    Integer[] indices = new Integer[ids.length];
+    for(int idx=0;idx<ids.length;idx++) {
+      indices[idx] = idx;
+    }
+    Arrays.sort(indices, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return ids[a].compareTo(ids[b]);
+        }
+      });
+    int[] sorted = new int[ids.length];
+    for(int idx=0;idx<ids.length;idx++) {
+      sorted[idx] = indices[idx];
+    }
+    return new PKLookupTask(this, sorted, false);
+  }
+
+  /** How many ids each task looks up. */
+  public int getIDCount() {
+    return ids.length;
+  }
+
   public PKLookupTask(int maxDoc, Random random, int count, Set<BytesRef> seen, int ord) {
     this.ord = ord;
+    sortedIndices = null;
+    useFilter = false;
     ids = new BytesRef[count];
     answers = new int[count];
     Arrays.fill(answers, -1);
@@ -70,6 +129,8 @@ final class PKLookupTask extends Task {
         ids[idx++] = id;
       }
     }
+    sortedIDs = ids.clone();
+    Arrays.sort(sortedIDs);
   }
 
   @Override
@@ -84,16 +145,25 @@ final class PKLookupTask extends Task {
     try {
       final List<LeafReaderContext> subReaders = searcher.getIndexReader().leaves();
       IndexState.PKLookupState[] pkStates = new IndexState.PKLookupState[subReaders.size()];
+      PKBloomFilter[] filters = useFilter ? new PKBloomFilter[subReaders.size()] : null;
       for(int subIDX=0;subIDX<subReaders.size();subIDX++) {
         LeafReaderContext ctx = subReaders.get(subIDX);
-        ThreadLocal<IndexState.PKLookupState> states = state.pkLookupStates.get(ctx.reader().getCoreCacheHelper().getKey());
+        Map<Integer,IndexState.PKLookupState> states = state.pkLookupStates.get(ctx.reader().getCoreCacheHelper().getKey());
         // NPE here means you are trying to use this task on a newly refreshed NRT reader!
-        IndexState.PKLookupState pkState = states.get();
+        IndexState.PKLookupState pkState = states.get(threadID);
         if (pkState == null) {
           pkState = new IndexState.PKLookupState(ctx.reader(), "id");
-          states.set(pkState);
+          states.put(threadID, pkState);
         }
         pkStates[subIDX] = pkState;
+        if (useFilter) {
+          filters[subIDX] = state.getPKFilter(ctx.reader());
+        }
+      }
+
+      if (sortedIndices != null) {
+        lookupBatched(subReaders, pkStates);
+        return;
       }
 
       for(int idx=0;idx<ids.length;idx++) {
@@ -103,7 +173,7 @@ final class PKLookupTask extends Task {
           IndexState.PKLookupState pkState = pkStates[subIDX];
           //System.out.println("\nTASK: sub=" + sub);
           //System.out.println("TEST: lookup " + ids[idx].utf8ToString());
-          if (pkState.termsEnum.seekExact(id)) { 
+          if ((filters == null || filters[subIDX].mayContain(id)) && pkState.termsEnum.seekExact(id)) {
             //System.out.println("  found!");
             PostingsEnum docs = pkState.termsEnum.postings(pkState.postingsEnum, 0);
             assert docs != null;
@@ -127,16 +197,81 @@ final class PKLookupTask extends Task {
     }
   }
 
+  private void lookupBatched(List<LeafReaderContext> subReaders, IndexState.PKLookupState[] pkStates) throws IOException {
+    int remaining = ids.length;
+    for(int subIDX=0;subIDX<subReaders.size() && remaining > 0;subIDX++) {
+      final IndexState.PKLookupState pkState = pkStates[subIDX];
+      final int base = subReaders.get(subIDX).docBase;
+      for(int sortedIDX=0;sortedIDX<sortedIndices.length;sortedIDX++) {
+        final int idx = sortedIndices[sortedIDX];
+        if (answers[idx] != -1) {
+          // Already found in a prior segment
+          continue;
+        }
+        if (pkState.termsEnum.seekExact(ids[idx])) {
+          PostingsEnum docs = pkState.termsEnum.postings(pkState.postingsEnum, 0);
+          for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+            if (pkState.liveDocs == null || pkState.liveDocs.get(d)) {
+              answers[idx] = base + d;
+              remaining--;
+              break;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void clearResults() {
+    answers = null;
+  }
+
   @Override
   public String toString() {
-    return "PK" + ord + "[" + ids.length + "]";
+    final String prefix;
+    if (useFilter) {
+      prefix = "PKFiltered";
+    } else if (sortedIndices != null) {
+      prefix = "PKBatched";
+    } else {
+      prefix = "PK";
+    }
+    return prefix + ord + "[" + ids.length + "]";
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof PKLookupTask) {
+      final PKLookupTask otherPKLookupTask = (PKLookupTask) other;
+      return Arrays.equals(sortedIDs, otherPKLookupTask.sortedIDs) &&
+        (sortedIndices != null) == (otherPKLookupTask.sortedIndices != null) &&
+        useFilter == otherPKLookupTask.useFilter;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    int hashCode = Arrays.hashCode(sortedIDs);
+    if (sortedIndices != null) {
+      hashCode ^= 1;
+    }
+    if (useFilter) {
+      hashCode ^= 2;
+    }
+    return hashCode;
   }
 
   @Override
   public long checksum() {
-    // TODO, but, not sure it makes sense since we will
-    // run a different PK lookup each time...?
-    return 0;
+    final long PRIME = 641;
+    long sum = 0;
+    for(int idx=0;idx<ids.length;idx++) {
+      sum = sum * PRIME + answers[idx];
+    }
+    return sum;
   }
 
   @Override
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -36,9 +37,12 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 
+// Looks up a sorted batch of random int ids, indexed as points, with
+// one BKD traversal per segment (IndexState.MultiPKIntersectVisitor)
+// resolving all ids not already found in a prior segment:
 final class PointsPKLookupTask extends Task {
   private final int[] ids;
-  private final int[] answers;
+  private int[] answers;
   private final int ord;
 
   @Override
@@ -66,6 +70,13 @@ final class PointsPKLookupTask extends Task {
         ids[idx++] = id;
       }
     }
+    // Lookup order doesn't matter, and the batch visitor wants them sorted:
+    Arrays.sort(ids);
+  }
+
+  /** How many ids each task looks up. */
+  public int getIDCount() {
+    return ids.length;
   }
 
   @Override
@@ -82,17 +93,48 @@ final class PointsPKLookupTask extends Task {
       IndexState.PointsPKLookupState[] pkStates = new IndexState.PointsPKLookupState[subReaders.size()];
       for(int subIDX=0;subIDX<subReaders.size();subIDX++) {
         LeafReaderContext ctx = subReaders.get(subIDX);
-        ThreadLocal<IndexState.PointsPKLookupState> states = state.pointsPKLookupStates.get(ctx.reader().getCoreCacheHelper().getKey());
+        Map<Integer,IndexState.PointsPKLookupState> states = state.pointsPKLookupStates.get(ctx.reader().getCoreCacheHelper().getKey());
         // NPE here means you are trying to use this task on a newly refreshed NRT reader!
-        IndexState.PointsPKLookupState pkState = states.get();
+        IndexState.PointsPKLookupState pkState = states.get(threadID);
         if (pkState == null) {
           pkState = new IndexState.PointsPKLookupState(ctx.reader(), "id");
-          states.set(pkState);
+          states.put(threadID, pkState);
         }
         pkStates[subIDX] = pkState;
       }
+
+      // Ids not yet found, and their index into ids:
+      int[] remaining = new int[ids.length];
+      int[] remainingIndex = new int[ids.length];
+      int remainingCount = ids.length;
+      for(int idx=0;idx<ids.length;idx++) {
+        remaining[idx] = ids[idx];
+        remainingIndex[idx] = idx;
+      }
+      for(int subIDX=0;subIDX<subReaders.size() && remainingCount > 0;subIDX++) {
+        IndexState.PointsPKLookupState pkState = pkStates[subIDX];
+        IndexState.MultiPKIntersectVisitor visitor = pkState.multiVisitor;
+        visitor.reset(remaining, remainingCount, pkState.liveDocs);
+        pkState.bkdReader.intersect(visitor);
+        final int base = subReaders.get(subIDX).docBase;
+        int upto = 0;
+        for(int i=0;i<remainingCount;i++) {
+          final int docID = visitor.answer(i);
+          if (docID != -1) {
+            answers[remainingIndex[i]] = base + docID;
+          } else {
+            // Still sorted:
+            remaining[upto] = remaining[i];
+            remainingIndex[upto] = remainingIndex[i];
+            upto++;
+          }
+        }
+        remainingCount = upto;
+      }
+
+      /*
+      // Earlier, one id at a time:
       for(int idx=0;idx<ids.length;idx++) {
-        /*
         int base = 0;
         final int id = ids[idx];
         for(int subIDX=0;subIDX<subReaders.size();subIDX++) {
@@ -106,32 +148,53 @@ final class PointsPKLookupTask extends Task {
           }
           base += subReaders.get(subIDX).reader().maxDoc();
         }
-        */
 
         // this approach works, uses public APIs, but is slowish:
-        /*
         Query q = IntPoint.newExactQuery("id", ids[idx]);
         TopDocs hits = searcher.search(q, 1);
         if (hits.totalHits == 1) {
           answers[idx] = hits.scoreDocs[0].doc;
         }
-        */
       }
+      */
     } finally {
       state.mgr.release(searcher);
     }
   }
 
+  @Override
+  public void clearResults() {
+    answers = null;
+  }
+
   @Override
   public String toString() {
     return "PointsPK" + ord + "[" + ids.length + "]";
   }
 
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof PointsPKLookupTask) {
+      // ids are sorted:
+      return Arrays.equals(ids, ((PointsPKLookupTask) other).ids);
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(ids);
+  }
+
   @Override
   public long checksum() {
-    // TODO, but, not sure it makes sense since we will
-    // run a different PK lookup each time...?
-    return 0;
+    final long PRIME = 641;
+    long sum = 0;
+    for(int idx=0;idx<ids.length;idx++) {
+      sum = sum * PRIME + answers[idx];
+    }
+    return sum;
   }
 
   @Override
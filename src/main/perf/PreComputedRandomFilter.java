@@ -17,64 +17,214 @@ package perf;
  * limitations under the License.
  */
 
-import java.util.List;
-import java.util.Random;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
-import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
 import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.Filter;
-import org.apache.lucene.util.Bits;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitDocIdSet;
 import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.RoaringDocIdSet;
 
-// TODO: can't we use RandomFilter here...?
-final class PreComputedRandomFilter extends Filter {
-
-  private final FixedBitSet[] segmentBits;
-  private final double pct;
-
-  public PreComputedRandomFilter(DirectoryReader reader, Random random, double pctAcceptDocs) {
-    //System.out.println("FILT: pct=" + pctAcceptDocs);
-    this.pct = pctAcceptDocs;
-    pctAcceptDocs /= 100.0;
-    final List<AtomicReaderContext> subReaders = reader.leaves();
-    segmentBits = new FixedBitSet[subReaders.size()];
-    for(int segID=0;segID<subReaders.size();segID++) {
-      final int maxDoc = subReaders.get(segID).reader().maxDoc();
-      final FixedBitSet bits = segmentBits[segID] = new FixedBitSet(maxDoc);
-      int count = 0;
-      for(int docID=0;docID<maxDoc;docID++) {
-        if (random.nextDouble() <= pctAcceptDocs) {
-          bits.set(docID);
-          count++;
+// Accepts the same docs as RandomQuery, but computes them once per
+// segment and caches them, like an application's cached ACL
+// filters, instead of doing the arithmetic on every advance.  Each
+// segment gets the DocIdSet that suits its density: a sorted int[]
+// when very sparse, RoaringDocIdSet when sparse, else FixedBitSet.
+// The docs are spread uniformly, one per interval, so there are no
+// clustered segments that SparseFixedBitSet would suit.  One
+// instance per percentage is shared by all tasks and threads (see
+// IndexState.getRandomFilter):
+final class PreComputedRandomFilter extends Query {
+
+  private final double fractionKeep;
+  private final int interval;
+
+  // Only searches needing the same, not yet built segment wait for
+  // each other:
+  private final ConcurrentHashMap<IndexReader.CacheKey,DocIdSet> segmentDocs = new ConcurrentHashMap<>();
+
+  // DocIdSet class -> segment count, for printStats:
+  private final ConcurrentHashMap<String,AtomicInteger> setCounts = new ConcurrentHashMap<>();
+  private final AtomicLong buildNanos = new AtomicLong();
+  private final AtomicLong ramBytesUsed = new AtomicLong();
+
+  public PreComputedRandomFilter(double pctKeep) {
+    // NOTE: same arithmetic as RandomQuery:
+    this.fractionKeep = pctKeep / 100.0;
+    this.interval = (int) (1 / fractionKeep);
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+    return new ConstantScoreWeight(this, boost) {
+      @Override
+      public Scorer scorer(LeafReaderContext context) throws IOException {
+        final DocIdSetIterator iterator = getDocIdSet(context.reader()).iterator();
+        if (iterator == null) {
+          return null;
         }
+        return new ConstantScoreScorer(this, score(), iterator);
       }
-      //System.out.println("  r=" + maxDoc + " ct=" + count);
+    };
+  }
+
+  private DocIdSet getDocIdSet(final LeafReader reader) {
+    final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+    final DocIdSet docs = segmentDocs.get(cacheHelper.getKey());
+    if (docs != null) {
+      return docs;
     }
+    return segmentDocs.computeIfAbsent(cacheHelper.getKey(), new Function<IndexReader.CacheKey,DocIdSet>() {
+        @Override
+        public DocIdSet apply(IndexReader.CacheKey key) {
+          final long t0 = System.nanoTime();
+          final DocIdSet docs = build(reader.maxDoc());
+          buildNanos.addAndGet(System.nanoTime() - t0);
+          ramBytesUsed.addAndGet(docs.ramBytesUsed());
+          final String name;
+          if (docs instanceof BitDocIdSet) {
+            name = ((BitDocIdSet) docs).bits().getClass().getSimpleName();
+          } else {
+            name = docs.getClass().getSimpleName();
+          }
+          AtomicInteger count = setCounts.get(name);
+          if (count == null) {
+            count = new AtomicInteger();
+            final AtomicInteger prev = setCounts.putIfAbsent(name, count);
+            if (prev != null) {
+              count = prev;
+            }
+          }
+          count.incrementAndGet();
+          cacheHelper.addClosedListener(new IndexReader.ClosedListener() {
+              @Override
+              public void onClose(IndexReader.CacheKey key) {
+                segmentDocs.remove(key);
+              }
+            });
+          return docs;
+        }
+      });
   }
 
-  @Override
-  public int hashCode() {
-    return new Double(pct).hashCode();
+  private DocIdSet build(int maxDoc) {
+    // One doc per interval, as RandomQuery's iterator returns them:
+    int[] docs = new int[maxDoc / interval + 1];
+    int count = 0;
+    for(int intervalId=0;;intervalId++) {
+      final int doc = intervalId * interval + (31 * intervalId) % interval;
+      if (doc >= maxDoc) {
+        break;
+      }
+      docs[count++] = doc;
+    }
+
+    if (count < maxDoc >>> 7) {
+      return new IntArrayDocIdSet(Arrays.copyOf(docs, count));
+    } else if (count < maxDoc >>> 4) {
+      final RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(maxDoc);
+      for(int i=0;i<count;i++) {
+        builder.add(docs[i]);
+      }
+      return builder.build();
+    } else {
+      final FixedBitSet bits = new FixedBitSet(maxDoc);
+      for(int i=0;i<count;i++) {
+        bits.set(docs[i]);
+      }
+      return new BitDocIdSet(bits, count);
+    }
+  }
+
+  /** Prints which DocIdSets were built, their total RAM and build time. */
+  public void printStats(PrintStream out) {
+    out.println(String.format(Locale.ROOT, "  fractionKeep=%s: %s; %.1f KB RAM; %.1f msec to build",
+                              fractionKeep, new TreeMap<>(setCounts), ramBytesUsed.get()/1024.0, buildNanos.get()/1000000.0));
+  }
+
+  // Sorted docIDs, for very sparse segments:
+  private static final class IntArrayDocIdSet extends DocIdSet {
+    private final int[] docs;
+
+    IntArrayDocIdSet(int[] docs) {
+      this.docs = docs;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+      return new DocIdSetIterator() {
+        int i = -1;
+        int doc = -1;
+
+        @Override
+        public int docID() {
+          return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+          if (++i >= docs.length) {
+            return doc = NO_MORE_DOCS;
+          }
+          return doc = docs[i];
+        }
+
+        @Override
+        public int advance(int target) {
+          int idx = Arrays.binarySearch(docs, i+1, docs.length, target);
+          if (idx < 0) {
+            idx = -idx - 1;
+          }
+          i = idx;
+          if (i >= docs.length) {
+            return doc = NO_MORE_DOCS;
+          }
+          return doc = docs[i];
+        }
+
+        @Override
+        public long cost() {
+          return docs.length;
+        }
+      };
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.sizeOf(docs);
+    }
   }
 
   @Override
-  public boolean equals(Object other) {
-    return this == other;
+  public String toString(String field) {
+    return "PreComputedRandomFilter(fractionKeep=" + fractionKeep + ")";
   }
 
   @Override
-  public String toString() {
-    return "PreComputedRandomFilter(pctAccept=" + pct + ")";
+  public int hashCode() {
+    return 31 * classHash() + Double.hashCode(fractionKeep);
   }
 
   @Override
-  public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) {
-    final FixedBitSet bits = segmentBits[context.ord];
-    assert context.reader().maxDoc() == bits.length();
-    return BitsFilteredDocIdSet.wrap(bits, acceptDocs);
+  public boolean equals(Object obj) {
+    return sameClassAs(obj) && fractionKeep == ((PreComputedRandomFilter) obj).fractionKeep;
   }
 }
-
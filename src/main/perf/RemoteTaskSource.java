@@ -18,33 +18,79 @@ package perf;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-// Serves up tasks from remote client
+// Serves up tasks from any number of remote clients (load
+// generators, e.g. sendTasks.py), using one selector thread for all
+// connections.  The protocol is binary and length prefixed, all ints
+// big-endian:
+//
+//   request:  int clientTaskID, int byteCount, byteCount bytes of UTF-8 task text
+//   response: int clientTaskID, int totalHitCount, long queueTimeNS
+//
+// clientTaskID is chosen by the client and just echoed back.
+// Search threads queue their responses on the connection and the
+// selector thread writes all queued responses for a connection at
+// once.  The task text END// stops the search threads.
+//
+// Task text is parsed through a TaskCache, either on the selector
+// thread as it is read (default) or, with parseOnWorkers, by the
+// search thread that takes it.  Either way recvTimeNS is when the
+// request was read, so parsing counts as queue time:
 class RemoteTaskSource extends Thread implements TaskSource {
-  private final ServerSocket serverSocket;
-  private final TaskParser taskParser;
+  private static final int MAX_TASK_BYTES = 64*1024;
+  private static final int REQUEST_HEADER_BYTES = 8;
+  private static final int RESPONSE_BYTES = 16;
+
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final TaskCache taskCache;
+  private final boolean parseOnWorkers;
   private final int numThreads;
-  private static final int MAX_BYTES = 70;
 
   // nocommit maybe fair=true?
-  private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(100000);
+  private final BlockingQueue<Request> queue = new ArrayBlockingQueue<Request>(100000);
+
+  private static final Request END_REQUEST = new Request(null, 0, null, 0);
+
+  // Maps our Task.taskID to its request, for the response:
+  private final Map<Integer,Request> pendingTasks = new ConcurrentHashMap<>();
+  private final AtomicInteger nextTaskID = new AtomicInteger();
+
+  // Connections that have responses waiting to be written:
+  private final Queue<Connection> needsFlush = new ConcurrentLinkedQueue<>();
 
   public RemoteTaskSource(String iface, int port, int numThreads, TaskParser taskParser) throws IOException {
+    this(iface, port, numThreads, taskParser, 0, false);
+  }
+
+  /** taskCacheSize is the max number of parsed tasks to cache (0 to disable). */
+  public RemoteTaskSource(String iface, int port, int numThreads, TaskParser taskParser, int taskCacheSize, boolean parseOnWorkers) throws IOException {
     this.numThreads = numThreads;
-    this.taskParser = taskParser;
-    serverSocket = new ServerSocket(port, 50, InetAddress.getByName(iface));
-    System.out.println("Waiting for client connection on interface " + iface + ", port " + port);
+    this.taskCache = new TaskCache(taskParser, taskCacheSize);
+    this.parseOnWorkers = parseOnWorkers;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(InetAddress.getByName(iface), port), 50);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("Waiting for client connections on interface " + iface + ", port " + port);
     setPriority(Thread.MAX_PRIORITY);
     setDaemon(true);
     start();
@@ -55,102 +101,253 @@ class RemoteTaskSource extends Thread implements TaskSource {
     return null;
   }
 
-  private volatile OutputStream out;
+  private static final class Request {
+    final Connection connection;
+    final int clientTaskID;
+    final String text;
+    final long recvTimeNS;
+    // null until parsed:
+    Task task;
 
-  @Override
-  public void run() {
-    // Start server socket and accept only one client
-    // connection, which will feed us the requests:
+    Request(Connection connection, int clientTaskID, String text, long recvTimeNS) {
+      this.connection = connection;
+      this.clientTaskID = clientTaskID;
+      this.text = text;
+      this.recvTimeNS = recvTimeNS;
+    }
+  }
 
-    newClient: while(true) {
-      Socket socket = null;
-      InputStream in;
-      try {
-        System.out.println("  ready for client...");
-        socket = serverSocket.accept();
-        in = socket.getInputStream();
-        out = socket.getOutputStream();
-      } catch (IOException ioe) {
-        if (socket != null) {
-          try {
-            socket.close();
-          } catch (IOException ioe2) {
-          }
+  private final class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    volatile boolean closed;
+
+    // Only used by the selector thread:
+    ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    ByteBuffer writeBuffer = ByteBuffer.allocate(RESPONSE_BYTES*256);
+
+    // Filled by search threads, sync'd on this:
+    private ByteBuffer responses = ByteBuffer.allocate(RESPONSE_BYTES*256);
+    private boolean flushQueued;
+
+    Connection(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /** Called by search threads */
+    void addResponse(int clientTaskID, int totalHitCount, long queueTimeNS) {
+      boolean wakeup = false;
+      synchronized (this) {
+        if (closed) {
+          return;
         }
-        continue;
+        if (responses.remaining() < RESPONSE_BYTES) {
+          responses = grow(responses, responses.position() + RESPONSE_BYTES);
+        }
+        responses.putInt(clientTaskID);
+        responses.putInt(totalHitCount);
+        responses.putLong(queueTimeNS);
+        if (flushQueued == false) {
+          flushQueued = true;
+          wakeup = true;
+        }
+      }
+      if (wakeup) {
+        needsFlush.add(this);
+        selector.wakeup();
+      }
+    }
+
+    /** Called by the selector thread: moves all queued responses to the write buffer and writes as much as the socket takes. */
+    void flush() throws IOException {
+      synchronized (this) {
+        flushQueued = false;
+        responses.flip();
+        if (writeBuffer.remaining() < responses.remaining()) {
+          writeBuffer = grow(writeBuffer, writeBuffer.position() + responses.remaining());
+        }
+        writeBuffer.put(responses);
+        responses.clear();
       }
-      System.out.println("    connection!");
+      writeBuffer.flip();
+      channel.write(writeBuffer);
+      if (writeBuffer.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+      writeBuffer.compact();
+    }
 
+    void close() {
+      synchronized (this) {
+        closed = true;
+      }
+      key.cancel();
       try {
-        final byte[] buffer = new byte[MAX_BYTES];
-        int taskCount = 0;
-        while(true) {
-          int upto = 0;
-          while(upto < buffer.length) {
-            final int inc;
-            try {
-              inc = in.read(buffer, upto, MAX_BYTES-upto);
-            } catch (java.net.SocketException se) {
-              socket.close();
-              queue.clear();
-              out = null;
-              continue newClient;
+        channel.close();
+      } catch (IOException ioe) {
+      }
+    }
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+    ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(minCapacity, 2*buffer.capacity()));
+    buffer.flip();
+    newBuffer.put(buffer);
+    return newBuffer;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        selector.select();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (key.isValid() == false) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+              channel.configureBlocking(false);
+              channel.socket().setTcpNoDelay(true);
+              new Connection(channel);
+              System.out.println("    connection from " + channel.getRemoteAddress());
+            }
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              read(connection);
             }
-            if (inc >= 0) {
-              upto += inc;
-            } else {
-              // Connection closed
-              socket.close();
-              queue.clear();
-              out = null;
-              continue newClient;
+            if (key.isValid() && key.isWritable()) {
+              connection.flush();
             }
+          } catch (IOException ioe) {
+            System.out.println("    connection closed: " + ioe);
+            connection.close();
           }
+        }
 
-          String s = new String(buffer, "UTF-8");
-          if (s.startsWith("END//")) {
-            for(int threadID=0;threadID<numThreads;threadID++) {
-              queue.put(Task.END_TASK);
-            }
+        // Write responses queued by the search threads since the last select:
+        while (true) {
+          Connection connection = needsFlush.poll();
+          if (connection == null) {
             break;
           }
-          Task task;
-          try {
-            task = taskParser.parseOneTask(s);
-          } catch (RuntimeException re) {
-            re.printStackTrace();
+          if (connection.closed) {
             continue;
           }
-          task.recvTimeNS = System.nanoTime();
-          task.taskID = taskCount++;
-          queue.put(task);
-          //System.out.println("S: add " + s + "; size=" + queue.size());
+          try {
+            connection.flush();
+          } catch (IOException ioe) {
+            System.out.println("    connection closed: " + ioe);
+            connection.close();
+          }
         }
-      } catch (Exception e) {
-        throw new RuntimeException(e);
       }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void read(Connection connection) throws IOException, InterruptedException {
+    if (connection.channel.read(connection.readBuffer) == -1) {
+      System.out.println("    client disconnected; " + taskCache);
+      connection.close();
+      return;
+    }
+    ByteBuffer buffer = connection.readBuffer;
+    buffer.flip();
+    while (buffer.remaining() >= REQUEST_HEADER_BYTES) {
+      buffer.mark();
+      final int clientTaskID = buffer.getInt();
+      final int byteCount = buffer.getInt();
+      if (byteCount < 0 || byteCount > MAX_TASK_BYTES) {
+        throw new IOException("task length " + byteCount + " is out of bounds (max " + MAX_TASK_BYTES + ")");
+      }
+      if (buffer.remaining() < byteCount) {
+        // Partial request: wait for more bytes
+        buffer.reset();
+        break;
+      }
+      final String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), byteCount, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + byteCount);
+      handleRequest(connection, clientTaskID, text);
     }
+    buffer.compact();
+    if (buffer.position() == buffer.capacity()) {
+      // Buffer is full with a partial request: grow so the largest request fits
+      connection.readBuffer = grow(buffer, REQUEST_HEADER_BYTES + MAX_TASK_BYTES);
+    }
+  }
+
+  private void handleRequest(Connection connection, int clientTaskID, String text) throws InterruptedException {
+    if (text.startsWith("END//")) {
+      System.out.println("    END; " + taskCache);
+      for(int threadID=0;threadID<numThreads;threadID++) {
+        queue.put(END_REQUEST);
+      }
+      return;
+    }
+    final Request request = new Request(connection, clientTaskID, text, System.nanoTime());
+    if (parseOnWorkers == false && parse(request) == false) {
+      return;
+    }
+    queue.put(request);
+    //System.out.println("S: add " + text + "; size=" + queue.size());
+  }
+
+  /** Returns false, after answering the client, if the task text is malformed. */
+  private boolean parse(Request request) {
+    try {
+      request.task = taskCache.parseOneTask(request.text);
+    } catch (Exception e) {
+      e.printStackTrace();
+      // Still answer, so the client doesn't wait forever:
+      request.connection.addResponse(request.clientTaskID, -1, 0);
+      return false;
+    }
+    return true;
   }
 
   @Override
   public Task nextTask() throws InterruptedException {
-    return queue.take();
+    while (true) {
+      final Request request = queue.take();
+      if (request == END_REQUEST) {
+        return Task.END_TASK;
+      }
+      if (request.connection.closed) {
+        // Client went away: don't bother running its task
+        continue;
+      }
+      if (request.task == null && parse(request) == false) {
+        continue;
+      }
+      final Task task = request.task;
+      task.recvTimeNS = request.recvTimeNS;
+      task.taskID = nextTaskID.getAndIncrement();
+      pendingTasks.put(task.taskID, request);
+      return task;
+    }
   }
 
   @Override
-  public void taskDone(Task task, long queueTimeNS, int totalHitCount) throws IOException {
-    if (out != null) {
-      try {
-        // NOTE: can cause NPE here (we are not sync'd)
-        // but caller will print & ignore it...
-        out.write(String.format(Locale.ENGLISH, "%8d:%9d:%11.1f", task.taskID, totalHitCount, queueTimeNS/1000000.0).getBytes("UTF-8"));
-      } catch (SocketException se) {
-        System.out.println("Ignore SocketException: " + se);
-        queue.clear();
-      } catch (UnsupportedEncodingException uee) {
-        throw new RuntimeException(uee);
-      }
+  public void taskDone(Task task, long queueTimeNS, int totalHitCount) {
+    if (task == Task.END_TASK) {
+      return;
+    }
+    final Request request = pendingTasks.remove(task.taskID);
+    if (request != null) {
+      request.connection.addResponse(request.clientTaskID, totalHitCount, queueTimeNS);
     }
   }
 }
-
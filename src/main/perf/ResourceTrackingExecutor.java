@@ -0,0 +1,95 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed size thread pool, like Executors.newFixedThreadPool, for
+// intra-query concurrency (search slices, shards, drill sideways
+// dims).  While TaskThreads measures a task's resources, each job the
+// task submits adds the CPU time and allocated bytes of the pool
+// thread running it to the task's totals.  The job is measured inside
+// its future, so the totals are complete once the task has waited for
+// all of its jobs.  Each job also runs with the submitting task's
+// category (Task.currentCategory), so per-category stats such as the
+// query cache counters see work done on pool threads:
+class ResourceTrackingExecutor extends ThreadPoolExecutor {
+
+  // {CPU nanos, allocated bytes} used by pool threads on behalf of the
+  // task running on the current thread, or null if not measuring:
+  static final ThreadLocal<AtomicLong[]> currentTaskUsage = new ThreadLocal<>();
+
+  public ResourceTrackingExecutor(int numThreads) {
+    super(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+    final AtomicLong[] usage = currentTaskUsage.get();
+    final String category = Task.currentCategory.get();
+    if (usage == null && category == null) {
+      return super.newTaskFor(callable);
+    }
+    return super.newTaskFor(new TrackingCallable<T>(callable, usage, category));
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+    return newTaskFor(Executors.callable(runnable, value));
+  }
+
+  private static final class TrackingCallable<T> implements Callable<T> {
+    private final Callable<T> in;
+    private final AtomicLong[] usage;
+    private final String category;
+
+    TrackingCallable(Callable<T> in, AtomicLong[] usage, String category) {
+      this.in = in;
+      this.usage = usage;
+      this.category = category;
+    }
+
+    @Override
+    public T call() throws Exception {
+      // Also set for the job, so anything it submits in turn (e.g. a
+      // drill sideways dim's sliced search) is tracked the same way:
+      currentTaskUsage.set(usage);
+      Task.currentCategory.set(category);
+      final long cpu0 = usage == null ? -1 : TaskStats.currentThreadCPUNanos();
+      final long alloc0 = usage == null ? -1 : TaskStats.currentThreadAllocatedBytes();
+      try {
+        return in.call();
+      } finally {
+        if (cpu0 != -1) {
+          usage[0].addAndGet(TaskStats.currentThreadCPUNanos()-cpu0);
+        }
+        if (alloc0 != -1) {
+          usage[1].addAndGet(TaskStats.currentThreadAllocatedBytes()-alloc0);
+        }
+        currentTaskUsage.remove();
+        Task.currentCategory.remove();
+      }
+    }
+  }
+}
@@ -50,6 +50,11 @@ final class RespellTask extends Task {
     //printResults(System.out, state);
   }
 
+  @Override
+  public void clearResults() {
+    answers = null;
+  }
+
   @Override
   public String toString() {
     return "respell " + term.text();
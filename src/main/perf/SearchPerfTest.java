@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,8 +35,11 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.HdrHistogram.Histogram;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
@@ -64,6 +68,7 @@ import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.search.spell.DirectSpellChecker;
 import org.apache.lucene.store.Directory;
@@ -138,7 +143,9 @@ public class SearchPerfTest {
     final Args args = new Args(clArgs);
 
     Directory dir0;
-    final String dirPath = args.getString("-indexPath") + "/index";
+    // More than one -indexPath searches each as a shard (see ShardedIndexSearcher):
+    final List<String> indexPaths = args.getStrings("-indexPath");
+    final String dirPath = indexPaths.get(0) + "/index";
     final String dirImpl = args.getString("-dirImpl");
 
     OpenDirectory od = OpenDirectory.get(dirImpl);
@@ -194,12 +201,95 @@ public class SearchPerfTest {
     final String analyzer = args.getString("-analyzer");
     final String tasksFile = args.getString("-taskSource");
     final int searchThreadCount = args.getInt("-searchThreadCount");
+    final TaskThreads.ExecutionMode searchExecutionMode = TaskThreads.ExecutionMode.valueOf(args.getString("-searchExecutor", "threads").toUpperCase(Locale.ROOT));
     final String fieldName = args.getString("-field");
     final boolean printHeap = args.getFlag("-printHeap");
     final boolean doPKLookup = args.getFlag("-pk");
+    // Also run each PK lookup task batched (ids sorted, one pass per segment), as category PKLookupBatched:
+    final boolean doPKLookupBatched = args.getFlag("-pkBatched");
+    if (doPKLookupBatched && doPKLookup == false) {
+      throw new IllegalArgumentException("-pkBatched requires -pk");
+    }
+    // Also run each PK lookup task skipping segments by a per-segment Bloom filter, as category PKLookupFiltered:
+    final boolean doPKLookupFiltered = args.getFlag("-pkFilter");
+    if (doPKLookupFiltered && doPKLookup == false) {
+      throw new IllegalArgumentException("-pkFilter requires -pk");
+    }
+    // Also look up int ids indexed as points, one BKD traversal per segment per batch, as category PointsPKLookup:
+    final boolean doPointsPKLookup = args.getFlag("-pkPoints");
     final int topN = args.getInt("-topN");
     final boolean doStoredLoads = args.getFlag("-loadStoredFields");
 
+    // How many threads each query may use to search its segments
+    // concurrently; 0 means each query runs on the task thread only:
+    final int searchConcurrency;
+    if (args.hasArg("-searchConcurrency")) {
+      searchConcurrency = args.getInt("-searchConcurrency");
+    } else {
+      searchConcurrency = 0;
+    }
+    if (args.hasArg("-searchSliceMaxDocs")) {
+      SlicedIndexSearcher.maxDocsPerSlice = args.getInt("-searchSliceMaxDocs");
+    }
+    if (args.hasArg("-searchSliceMaxSegments")) {
+      SlicedIndexSearcher.maxSegmentsPerSlice = args.getInt("-searchSliceMaxSegments");
+    }
+    // Queries whose summed per-segment cost is below this run inline instead of concurrently:
+    if (args.hasArg("-searchParallelMinCost")) {
+      SlicedIndexSearcher.minParallelCost = args.getLong("-searchParallelMinCost");
+    }
+    // By default we don't bench the query cache:
+    final CategoryQueryCache queryCache;
+    if (args.getFlag("-queryCache")) {
+      final int queryCacheMaxSize;
+      if (args.hasArg("-queryCacheMaxSize")) {
+        queryCacheMaxSize = args.getInt("-queryCacheMaxSize");
+      } else {
+        queryCacheMaxSize = 1000;
+      }
+      final double queryCacheMaxRAMMB;
+      if (args.hasArg("-queryCacheMaxRAMMB")) {
+        queryCacheMaxRAMMB = args.getDouble("-queryCacheMaxRAMMB");
+      } else {
+        queryCacheMaxRAMMB = 32.0;
+      }
+      final String queryCachePolicy = args.getString("-queryCachePolicy", "usage");
+      queryCache = new CategoryQueryCache(queryCacheMaxSize, (long) (queryCacheMaxRAMMB*1024*1024), queryCachePolicy);
+      System.out.println("Query cache: maxSize=" + queryCacheMaxSize + " maxRAMMB=" + queryCacheMaxRAMMB + " policy=" + queryCachePolicy);
+    } else {
+      queryCache = null;
+    }
+
+    final ExecutorService searchExecutor;
+    if (searchConcurrency > 0) {
+      searchExecutor = new ResourceTrackingExecutor(searchConcurrency);
+    } else {
+      searchExecutor = null;
+    }
+
+    // If > 0, +drillSideways tasks run each dim's sideways search concurrently on this many threads:
+    final ExecutorService drillSidewaysExecutor;
+    if (args.hasArg("-drillSidewaysThreads")) {
+      drillSidewaysExecutor = new ResourceTrackingExecutor(args.getInt("-drillSidewaysThreads"));
+    } else {
+      drillSidewaysExecutor = null;
+    }
+
+    // With several shards, each query searches all shards concurrently on this many threads:
+    final ExecutorService shardExecutor;
+    if (indexPaths.size() > 1) {
+      final int shardThreads;
+      if (args.hasArg("-shardThreads")) {
+        shardThreads = args.getInt("-shardThreads");
+      } else {
+        shardThreads = indexPaths.size();
+      }
+      shardExecutor = new ResourceTrackingExecutor(shardThreads);
+      System.out.println(indexPaths.size() + " shards; " + shardThreads + " shard threads");
+    } else {
+      shardExecutor = null;
+    }
+
     // Used to choose which random subset of tasks we will
     // run, to generate the PKLookup tasks, and to generate
     // any random pct filters:
@@ -219,6 +309,12 @@ public class SearchPerfTest {
     System.out.println("Analyzer " + analyzer);
     System.out.println("Similarity " + similarity);
     System.out.println("Search thread count " + searchThreadCount);
+    System.out.println("Search executor " + searchExecutionMode);
+    if (searchExecutor != null) {
+      System.out.println("Search concurrency " + searchConcurrency + "; max docs per slice " + SlicedIndexSearcher.maxDocsPerSlice +
+                         "; max segments per slice " + SlicedIndexSearcher.maxSegmentsPerSlice +
+                         "; min parallel cost " + SlicedIndexSearcher.minParallelCost);
+    }
     System.out.println("topN " + topN);
     System.out.println("JVM " + (Constants.JRE_IS_64BIT ? "is" : "is not") + " 64bit");
     System.out.println("Pointer is " + RamUsageEstimator.NUM_BYTES_OBJECT_REF + " bytes");
@@ -242,12 +338,38 @@ public class SearchPerfTest {
     final ReferenceManager<IndexSearcher> mgr;
     final IndexWriter writer;
     final Directory dir;
+    // Directories of the shards after the first one:
+    final List<Directory> shardDirs = new ArrayList<>();
+    ShardedIndexSearcher shardedSearcher = null;
 
     final String commit = args.getString("-commit");
     final String hiliteImpl = args.getString("-hiliteImpl");
+    // Only for -hiliteImpl UnifiedHighlighter: postings, termvectors or analysis (default: pick by index options):
+    final String hiliteOffsetSource = args.getString("-hiliteOffsetSource", null);
 
     final String logFile = args.getString("-log");
 
+    // True to also write per-category latency histograms to <log>.<category>.hgrm:
+    final boolean writeHGRM = args.getFlag("-hgrm");
+
+    // If set, each category's tasks count as warmup (not reported) until the coefficient of variation of
+    // its last -warmupWindow latencies stays at or below this:
+    final double warmupMaxCV;
+    if (args.hasArg("-warmupMaxCV")) {
+      warmupMaxCV = args.getDouble("-warmupMaxCV");
+    } else {
+      warmupMaxCV = 0.0;
+    }
+    final int warmupWindow;
+    if (args.hasArg("-warmupWindow")) {
+      warmupWindow = args.getInt("-warmupWindow");
+    } else {
+      warmupWindow = 50;
+    }
+
+    // True to also report per-category CPU time and allocated bytes per task:
+    final boolean measureResources = args.getFlag("-taskResources");
+
     final long tSearcherStart = System.currentTimeMillis();
 
     final boolean verifyCheckSum = !args.getFlag("-skipVerifyChecksum");
@@ -258,6 +380,9 @@ public class SearchPerfTest {
     }
 
     if (args.getFlag("-nrt")) {
+      if (indexPaths.size() > 1) {
+        throw new IllegalArgumentException("-nrt does not support more than one -indexPath");
+      }
       // TODO: get taxoReader working here too
       // TODO: factor out & share this CL processing w/ Indexer
       final int indexThreadCount = args.getInt("-indexThreadCount");
@@ -328,7 +453,7 @@ public class SearchPerfTest {
             final long t0 = System.currentTimeMillis();
             //System.out.println("DO WARM: " + reader);
             IndexSearcher s = new IndexSearcher(reader);
-            s.setQueryCache(null); // don't bench the cache
+            setQueryCache(s, queryCache);
             s.search(new TermQuery(new Term(fieldName, "united")), 10);
             final long t1 = System.currentTimeMillis();
             System.out.println("warm segment=" + reader + " numDocs=" + reader.numDocs() + ": took " + (t1-t0) + " msec");
@@ -348,8 +473,8 @@ public class SearchPerfTest {
       mgr = new SearcherManager(writer, new SearcherFactory() {
           @Override
           public IndexSearcher newSearcher(IndexReader reader, IndexReader previous) {
-            IndexSearcher s = new IndexSearcher(reader);
-            s.setQueryCache(null); // don't bench the cache
+            IndexSearcher s = SlicedIndexSearcher.create(reader, searchExecutor);
+            setQueryCache(s, queryCache);
             s.setSimilarity(sim);
             return s;
           }
@@ -405,6 +530,29 @@ public class SearchPerfTest {
       reopenThread.setPriority(4+Thread.currentThread().getPriority());
       reopenThread.start();
 
+    } else if (indexPaths.size() > 1) {
+      dir = dir0;
+      writer = null;
+      final DirectoryReader[] shardReaders = new DirectoryReader[indexPaths.size()];
+      for(int i=0;i<shardReaders.length;i++) {
+        final Directory shardDir;
+        if (i == 0) {
+          shardDir = dir0;
+        } else {
+          shardDir = od.open(Paths.get(indexPaths.get(i) + "/index"));
+          shardDirs.add(shardDir);
+        }
+        if (commit != null && commit.length() > 0) {
+          shardReaders[i] = DirectoryReader.open(PerfUtils.findCommitPoint(commit, shardDir));
+        } else {
+          shardReaders[i] = DirectoryReader.open(shardDir);
+        }
+        System.out.println("shard " + i + " " + indexPaths.get(i) + ": maxDoc=" + shardReaders[i].maxDoc() + " numDocs=" + shardReaders[i].numDocs());
+      }
+      shardedSearcher = new ShardedIndexSearcher(shardReaders, shardExecutor);
+      setQueryCache(shardedSearcher, queryCache);
+      shardedSearcher.setSimilarity(sim);
+      mgr = new SingleIndexSearcher(shardedSearcher);
     } else {
       dir = dir0;
       writer = null;
@@ -416,8 +564,8 @@ public class SearchPerfTest {
         // open last commit
         reader = DirectoryReader.open(dir);
       }
-      IndexSearcher s = new IndexSearcher(reader);
-      s.setQueryCache(null); // don't bench the cache
+      IndexSearcher s = SlicedIndexSearcher.create(reader, searchExecutor);
+      setQueryCache(s, queryCache);
       s.setSimilarity(sim);
       System.out.println("maxDoc=" + reader.maxDoc() + " numDocs=" + reader.numDocs() + " %tg deletes=" + (100.*reader.maxDoc()/reader.numDocs()));
       
@@ -487,9 +635,13 @@ public class SearchPerfTest {
     }
 
     TaxonomyReader taxoReader;
-    Path taxoPath = Paths.get(args.getString("-indexPath"), "facets");
+    Path taxoPath = Paths.get(indexPaths.get(0), "facets");
     Directory taxoDir = od.open(taxoPath);
-    if (DirectoryReader.indexExists(taxoDir)) {
+    if (indexPaths.size() > 1) {
+      // Each shard would have its own taxonomy ords:
+      System.out.println("NOTE: taxonomy facets are disabled with more than one shard");
+      taxoReader = null;
+    } else if (DirectoryReader.indexExists(taxoDir)) {
       taxoReader = new DirectoryTaxonomyReader(taxoDir);
       System.out.println("Taxonomy has " + taxoReader.getSize() + " ords");
     } else {
@@ -500,7 +652,37 @@ public class SearchPerfTest {
     final Random random = new Random(randomSeed);
 
     final DirectSpellChecker spellChecker = new DirectSpellChecker();
-    final IndexState indexState = new IndexState(mgr, taxoReader, fieldName, spellChecker, hiliteImpl, facetsConfig, facetDimMethods);
+    final IndexState indexState = new IndexState(mgr, taxoReader, fieldName, spellChecker, hiliteImpl, facetsConfig, facetDimMethods,
+                                                 a, hiliteOffsetSource);
+    indexState.drillSidewaysExecutor = drillSidewaysExecutor;
+
+    if (doPKLookupFiltered) {
+      // Build all PK Bloom filters now, instead of on the first lookup in each segment:
+      indexState.buildPKFilters();
+    }
+
+    // Top hits searches stop collecting, with partial results, once
+    // their category's time budget has passed:
+    //   -taskTimeBudgetMsec N: default budget for all categories
+    //   -categoryTimeBudgetMsec Cat:N: budget for one category (may be repeated; 0 means no budget)
+    // Budgets are measured by TimeLimitingCollector's global clock,
+    // which only ticks every 20 msec, so smaller budgets are rejected:
+    if (args.hasArg("-taskTimeBudgetMsec")) {
+      indexState.defaultTimeBudgetMsec = checkTimeBudget("-taskTimeBudgetMsec", args.getLong("-taskTimeBudgetMsec"));
+    }
+    if (args.hasArg("-categoryTimeBudgetMsec")) {
+      for(String arg : args.getStrings("-categoryTimeBudgetMsec")) {
+        final int i = arg.lastIndexOf(':');
+        if (i == -1) {
+          throw new IllegalArgumentException("-categoryTimeBudgetMsec should have form category:msec; got: " + arg);
+        }
+        indexState.categoryTimeBudgetsMsec.put(arg.substring(0, i), checkTimeBudget("-categoryTimeBudgetMsec " + arg, Long.parseLong(arg.substring(i+1))));
+      }
+    }
+    final boolean timeBudgets = indexState.defaultTimeBudgetMsec > 0 || indexState.categoryTimeBudgetsMsec.isEmpty() == false;
+    if (timeBudgets) {
+      System.out.println("Time budget " + indexState.defaultTimeBudgetMsec + " msec; per category " + indexState.categoryTimeBudgetsMsec);
+    }
 
     final QueryParser queryParser = new QueryParser("body", a);
     TaskParser taskParser = new TaskParser(indexState, queryParser, fieldName, topN, staticRandom, doStoredLoads);
@@ -514,7 +696,16 @@ public class SearchPerfTest {
       }
       String iface = tasksFile.substring(7, idx);
       int port = Integer.valueOf(tasksFile.substring(1+idx));
-      RemoteTaskSource remoteTasks = new RemoteTaskSource(iface, port, searchThreadCount, taskParser);
+      // Cache parsed tasks by their text (0 disables):
+      final int remoteTaskCacheSize;
+      if (args.hasArg("-remoteTaskCacheSize")) {
+        remoteTaskCacheSize = args.getInt("-remoteTaskCacheSize");
+      } else {
+        remoteTaskCacheSize = 0;
+      }
+      // Parse on the search threads instead of the network thread:
+      final boolean remoteParseOnWorkers = args.getFlag("-remoteParseOnWorkers");
+      RemoteTaskSource remoteTasks = new RemoteTaskSource(iface, port, searchThreadCount, taskParser, remoteTaskCacheSize, remoteParseOnWorkers);
 
       // nocommit must stop thread?
       tasks = remoteTasks;
@@ -522,7 +713,34 @@ public class SearchPerfTest {
       // Load the tasks from a file:
       final int taskRepeatCount = args.getInt("-taskRepeatCount");
       final int numTaskPerCat = args.getInt("-tasksPerCat");
-      tasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup);
+      // Open loop mode: release tasks at this rate instead of as fast as threads can take them:
+      final double targetQPS;
+      if (args.hasArg("-targetQPS")) {
+        targetQPS = args.getDouble("-targetQPS");
+      } else {
+        targetQPS = 0.0;
+      }
+      final String arrivals = args.getString("-arrivals", "poisson");
+      if (arrivals.equals("poisson") == false && arrivals.equals("constant") == false) {
+        throw new IllegalArgumentException("-arrivals must be poisson or constant; got: " + arrivals);
+      }
+      // Verify each task against the first instance as it finishes, then drop its results, instead of holding
+      // all results until the end:
+      final boolean streamVerify = args.getFlag("-streamVerify");
+      if (streamVerify && verifyCheckSum == false) {
+        throw new IllegalArgumentException("-streamVerify cannot be used with -skipVerifyChecksum");
+      }
+      // Also run the plain top hits search tasks in batches of this many queries, as categories QueryBatch
+      // (evaluated together, per segment) and QueryBatchIndependent (one by one):
+      final int batchQueries;
+      if (args.hasArg("-batchQueries")) {
+        batchQueries = args.getInt("-batchQueries");
+      } else {
+        batchQueries = 0;
+      }
+      tasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup,
+                                  doPKLookupBatched, doPKLookupFiltered, doPointsPKLookup, batchQueries,
+                                  targetQPS, arrivals.equals("poisson"), streamVerify);
       System.out.println("Task repeat count " + taskRepeatCount);
       System.out.println("Tasks file " + tasksFile);
       System.out.println("Num task per cat " + numTaskPerCat);
@@ -533,7 +751,10 @@ public class SearchPerfTest {
     // Evil respeller:
     //spellChecker.setMinPrefix(0);
     //spellChecker.setMaxInspections(1024);
-    final TaskThreads taskThreads = new TaskThreads(tasks, indexState, searchThreadCount);
+    final TaskStats taskStats = new TaskStats(searchThreadCount, warmupMaxCV, warmupWindow);
+    taskStats.setMeasureResources(measureResources);
+    taskStats.setTimeBudgets(timeBudgets);
+    final TaskThreads taskThreads = new TaskThreads(tasks, indexState, searchThreadCount, searchExecutionMode, taskStats);
     Thread.sleep(10);
 
     final long startNanos = System.nanoTime();
@@ -545,8 +766,28 @@ public class SearchPerfTest {
 
     final List<Task> allTasks = tasks.getAllTasks();
 
+    // How many ids each PK lookup task looks up, for the lookups/sec report:
+    int pkIDCount = 0;
+
+    // How many queries each BatchSearchTask runs, for the batch throughput report:
+    int batchQueryCount = 0;
+
+    // Per +earlyTerminate category: tasks, tasks that early terminated,
+    // tasks whose index wasn't sorted compatibly, sum of reported hit
+    // counts, sum of actual hit counts:
+    final Map<String,long[]> earlyTerminateStats = new TreeMap<>();
+    final Map<Task,Integer> actualHitCounts = new HashMap<>();
+
+    // Per category with timed out tasks: timed out tasks, sum of their
+    // (partial) hit counts, sum of their actual hit counts:
+    final Map<String,long[]> timeoutStats = new TreeMap<>();
+
     PrintStream out = new PrintStream(logFile);
 
+    if (allTasks != null) {
+      System.out.println(String.format(Locale.ROOT, "%.1f QPS", allTasks.size() / ((endNanos - startNanos)/1000000000.0)));
+    }
+
     if (allTasks != null) {
       // Tasks were local: verify checksums:
 
@@ -556,9 +797,24 @@ public class SearchPerfTest {
 
       out.println("\nResults for " + allTasks.size() + " tasks:");
 
+      final LocalTaskSource localTasks = (LocalTaskSource) tasks;
+      final boolean streamVerify = localTasks.isStreamVerify();
+
       boolean fail = false;
+      if (streamVerify) {
+        // Already verified as tasks finished:
+        for(final Task task : localTasks.getVerifyFailures()) {
+          System.out.println("\nTASK:");
+          task.printResults(System.out, indexState);
+          System.out.println("\nOTHER TASK:");
+          localTasks.getFirstInstance(task).printResults(System.out, indexState);
+          fail = true;
+        }
+      }
+
       for(final Task task : allTasks) {
-        if (verifyCheckSum) {
+        // Timed out tasks have partial results, so we can't verify them:
+        if (verifyCheckSum && streamVerify == false && task.timedOut == false) {
           final Task other = tasksSeen.get(task);
           if (other != null) {
             if (task.checksum() != other.checksum()) {
@@ -573,10 +829,47 @@ public class SearchPerfTest {
             tasksSeen.put(task, task);
           }
         }
-        out.println("\nTASK: " + task);
+        if (task.timedOut) {
+          long[] stats = timeoutStats.get(task.getCategory());
+          if (stats == null) {
+            stats = new long[3];
+            timeoutStats.put(task.getCategory(), stats);
+          }
+          stats[0]++;
+          stats[1] += task.totalHitCount;
+          stats[2] += getActualHitCount((SearchTask) task, indexState, actualHitCounts);
+        }
+        if (task instanceof SearchTask && ((SearchTask) task).isEarlyTerminate()) {
+          final SearchTask searchTask = (SearchTask) task;
+          long[] stats = earlyTerminateStats.get(task.getCategory());
+          if (stats == null) {
+            stats = new long[5];
+            earlyTerminateStats.put(task.getCategory(), stats);
+          }
+          stats[0]++;
+          if (searchTask.getTerminatedEarly()) {
+            stats[1]++;
+          }
+          if (searchTask.getEarlyTerminateApplied() == false) {
+            stats[2]++;
+          }
+          stats[3] += task.totalHitCount;
+          stats[4] += getActualHitCount(searchTask, indexState, actualHitCounts);
+        }
+        if (task instanceof BatchSearchTask) {
+          batchQueryCount = ((BatchSearchTask) task).getQueryCount();
+        }
+        if (task instanceof PKLookupTask) {
+          pkIDCount = ((PKLookupTask) task).getIDCount();
+        } else if (task instanceof PointsPKLookupTask) {
+          pkIDCount = ((PointsPKLookupTask) task).getIDCount();
+        }
+        // Results were dropped if they matched the first instance:
+        final Task shown = task.sameResultsAs != null ? task.sameResultsAs : task;
+        out.println("\nTASK: " + shown);
         out.println("  " + (task.runTimeNanos/1000000.0) + " msec");
         out.println("  thread " + task.threadID);
-        task.printResults(out, indexState);
+        shown.printResults(out, indexState);
       }
       if (fail) {
         throw new RuntimeException("some tasks got different results across different threads");
@@ -585,8 +878,93 @@ public class SearchPerfTest {
       allTasks.clear();
     }
 
+    taskStats.printSummary(out, endNanos - startNanos);
+    if (queryCache != null) {
+      queryCache.printStats(out);
+    }
+    if (pkIDCount != 0) {
+      out.println("\nPK LOOKUP RATE (per search thread):");
+      final Map<String,Histogram> merged = taskStats.merge();
+      final Histogram baseline = merged.get("PKLookup");
+      for(Map.Entry<String,Histogram> ent : merged.entrySet()) {
+        if (ent.getKey().startsWith("PKLookup") || ent.getKey().equals("PointsPKLookup")) {
+          final double meanMsec = ent.getValue().getHistogramData().getMean()/1000.0;
+          String speedup = "";
+          if (baseline != null && ent.getValue() != baseline) {
+            speedup = String.format(Locale.ROOT, "; %.2fx vs PKLookup", baseline.getHistogramData().getMean()/1000.0/meanMsec);
+          }
+          out.println(String.format(Locale.ROOT, "  %s: %.1f lookups/sec (%.3f msec per %d ids%s)",
+                                    ent.getKey(), pkIDCount/(meanMsec/1000.0), meanMsec, pkIDCount, speedup));
+        }
+      }
+      indexState.printPKFilterStats(out);
+    }
+    indexState.printSortedSetReaderStateStats(out);
+    if (batchQueryCount != 0) {
+      out.println("\nQUERY BATCH THROUGHPUT (per search thread):");
+      final Map<String,Histogram> merged = taskStats.merge();
+      final Histogram independent = merged.get("QueryBatchIndependent");
+      for(String category : new String[] {"QueryBatchIndependent", "QueryBatch"}) {
+        final Histogram histogram = merged.get(category);
+        if (histogram == null) {
+          continue;
+        }
+        final double meanMsec = histogram.getHistogramData().getMean()/1000.0;
+        String speedup = "";
+        if (independent != null && histogram != independent) {
+          speedup = String.format(Locale.ROOT, "; %.2fx vs independent", independent.getHistogramData().getMean()/1000.0/meanMsec);
+        }
+        out.println(String.format(Locale.ROOT, "  %s: %.1f queries/sec (%.3f msec per %d queries%s)",
+                                  category, batchQueryCount/(meanMsec/1000.0), meanMsec, batchQueryCount, speedup));
+      }
+    }
+    indexState.printRandomFilterStats(out);
+    if (SlicedIndexSearcher.minParallelCost > 0) {
+      SlicedIndexSearcher.printDecisionStats(out);
+    }
+    if (timeoutStats.isEmpty() == false) {
+      out.println("\nTIMED OUT TASKS (partial hits):");
+      for(Map.Entry<String,long[]> ent : timeoutStats.entrySet()) {
+        final long[] stats = ent.getValue();
+        out.println(String.format(Locale.ROOT, "  %s: %d timed out tasks (budget %d msec) returned %.1f%% of their hits",
+                                  ent.getKey(), stats[0], indexState.getTimeBudgetMsec(ent.getKey()),
+                                  stats[2] == 0 ? 100.0 : 100.0*stats[1]/stats[2]));
+      }
+    }
+    if (earlyTerminateStats.isEmpty() == false) {
+      out.println("\nEARLY TERMINATION (+earlyTerminate categories):");
+      final Map<String,Histogram> merged = taskStats.merge();
+      for(Map.Entry<String,long[]> ent : earlyTerminateStats.entrySet()) {
+        final long[] stats = ent.getValue();
+        final Histogram histogram = merged.get(ent.getKey());
+        final double meanMsec = histogram == null ? 0.0 : histogram.getHistogramData().getMean()/1000.0;
+        out.println(String.format(Locale.ROOT, "  %s: %.3f msec; terminated early in %d of %d tasks (%d not index-sorted); hit count %.1f%% of actual",
+                                  ent.getKey(), meanMsec, stats[1], stats[0], stats[2],
+                                  stats[4] == 0 ? 100.0 : 100.0*stats[3]/stats[4]));
+      }
+    }
+    if (shardedSearcher != null) {
+      shardedSearcher.printStats(out);
+    }
+    if (writeHGRM) {
+      taskStats.writeHGRMFiles(logFile);
+    }
+
+    indexState.close();
     mgr.close();
 
+    if (searchExecutor != null) {
+      searchExecutor.shutdown();
+    }
+
+    if (drillSidewaysExecutor != null) {
+      drillSidewaysExecutor.shutdown();
+    }
+
+    if (shardExecutor != null) {
+      shardExecutor.shutdown();
+    }
+
     if (taxoReader != null) {
       taxoReader.close();
     }
@@ -597,6 +975,9 @@ public class SearchPerfTest {
     }
 
     dir.close();
+    for(Directory shardDir : shardDirs) {
+      shardDir.close();
+    }
 
     if (printHeap) {
 
@@ -617,4 +998,36 @@ public class SearchPerfTest {
     out.close();
   }
 
+  // Exact hit count for this task's query, counted once per distinct task:
+  private static int getActualHitCount(SearchTask task, IndexState indexState, Map<Task,Integer> actualHitCounts) throws IOException {
+    Integer actualHitCount = actualHitCounts.get(task);
+    if (actualHitCount == null) {
+      IndexSearcher s = indexState.mgr.acquire();
+      try {
+        actualHitCount = task.countAllHits(s);
+      } finally {
+        indexState.mgr.release(s);
+      }
+      actualHitCounts.put(task, actualHitCount);
+    }
+    return actualHitCount;
+  }
+
+  private static long checkTimeBudget(String option, long budgetMsec) {
+    final long resolution = TimeLimitingCollector.getGlobalTimerThread().getResolution();
+    if (budgetMsec < 0 || (budgetMsec > 0 && budgetMsec < resolution)) {
+      throw new IllegalArgumentException(option + ": time budget must be 0 (none) or at least the " + resolution +
+                                         " msec resolution of TimeLimitingCollector's clock; got: " + budgetMsec);
+    }
+    return budgetMsec;
+  }
+
+  static void setQueryCache(IndexSearcher s, CategoryQueryCache queryCache) {
+    if (queryCache == null) {
+      s.setQueryCache(null); // don't bench the cache
+    } else {
+      s.setQueryCache(queryCache);
+      s.setQueryCachingPolicy(queryCache.getPolicy());
+    }
+  }
 }
@@ -19,25 +19,39 @@ package perf;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.DrillDownQuery;
+import org.apache.lucene.facet.DrillSideways;
 import org.apache.lucene.facet.FacetResult;
 import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.MultiFacets;
 import org.apache.lucene.facet.range.LongRange;
 import org.apache.lucene.facet.range.LongRangeFacetCounts;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.EarlyTerminatingSortingCollector;
 import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiCollector;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
 import org.apache.lucene.search.TopFieldDocs;
-import org.apache.lucene.search.grouping.AllGroupsCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.grouping.BlockGroupingCollector;
 import org.apache.lucene.search.grouping.FirstPassGroupingCollector;
 import org.apache.lucene.search.grouping.GroupDocs;
@@ -52,6 +66,7 @@ import org.apache.lucene.search.highlight.QueryScorer;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
 import org.apache.lucene.search.highlight.TextFragment;
 import org.apache.lucene.search.highlight.TokenSources;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
 import org.apache.lucene.search.vectorhighlight.FieldQuery;
 import org.apache.lucene.util.BytesRef;
 
@@ -59,7 +74,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 final class SearchTask extends Task {
   private final String category;
@@ -72,6 +89,12 @@ final class SearchTask extends Task {
   private final boolean doHilite;
   private final boolean doStoredLoads;
   private final boolean doDrillSideways;
+  private final boolean earlyTerminate;
+
+  // Only for +earlyTerminate tasks: whether every segment was sorted
+  // compatibly with s, and whether any segment stopped collecting early:
+  private boolean earlyTerminateApplied;
+  private boolean terminatedEarly;
 
   private TopDocs hits;
   private TopGroups<?> groupsResultBlock;
@@ -81,11 +104,12 @@ final class SearchTask extends Task {
   private List<FacetResult> facetResults;
   private double hiliteMsec;
   private double getFacetResultsMsec;
+  private double fetchMsec;
   private List<String> facetRequests;
 
   public SearchTask(String category, Query q, Sort s, String group, int topN,
                     boolean doHilite, boolean doStoredLoads, List<String> facetRequests,
-                    boolean doDrillSideways) {
+                    boolean doDrillSideways, boolean earlyTerminate) {
     this.category = category;
     this.q = q;
     this.s = s;
@@ -96,21 +120,23 @@ final class SearchTask extends Task {
     } else {
       this.group = group;
       this.singlePassGroup = false;
-      doCountGroups = false;
+      // group100 .. group1M: count all groups with GroupCountCollector
+      doCountGroups = group != null;
     }
     this.topN = topN;
     this.doHilite = doHilite;
     this.doStoredLoads = doStoredLoads;
     this.facetRequests = facetRequests;
     this.doDrillSideways = doDrillSideways;
+    this.earlyTerminate = earlyTerminate;
   }
 
   @Override
   public Task clone() {
     if (singlePassGroup) {
-      return new SearchTask(category, q, s, "groupblock1pass", topN, doHilite, doStoredLoads, facetRequests, doDrillSideways);
+      return new SearchTask(category, q, s, "groupblock1pass", topN, doHilite, doStoredLoads, facetRequests, doDrillSideways, earlyTerminate);
     } else {
-      return new SearchTask(category, q, s, group, topN, doHilite, doStoredLoads, facetRequests, doDrillSideways);
+      return new SearchTask(category, q, s, group, topN, doHilite, doStoredLoads, facetRequests, doDrillSideways, earlyTerminate);
     }
   }
 
@@ -119,6 +145,14 @@ final class SearchTask extends Task {
     return category;
   }
 
+  @Override
+  public void clearResults() {
+    hits = null;
+    groupsResultBlock = null;
+    groupsResultTerms = null;
+    facetResults = null;
+  }
+
   @Override
   public void go(IndexState state) throws IOException {
     //System.out.println("go group=" + this.group + " single=" + singlePassGroup + " xxx=" + xxx + " this=" + this);
@@ -126,6 +160,9 @@ final class SearchTask extends Task {
 
     //System.out.println("GO query=" + q);
 
+    // For per-category query cache and parallel search stats:
+    currentCategory.set(category);
+
     try {
       if (doHilite) {
         if (state.fastHighlighter != null) {
@@ -133,7 +170,7 @@ final class SearchTask extends Task {
         } else if (state.useHighlighter) {
           highlighter = new Highlighter(new SimpleHTMLFormatter(), new QueryScorer(q));
         } else {
-          // no setup for postingshighlighter
+          // UnifiedHighlighter is created in hilite, for the hits
         }
       }
 
@@ -152,14 +189,13 @@ final class SearchTask extends Task {
           final FirstPassGroupingCollector<BytesRef> c1 = new FirstPassGroupingCollector(new TermGroupSelector(group), Sort.RELEVANCE, 10);
 
           final Collector c;
-          final AllGroupsCollector<BytesRef> allGroupsCollector;
-          // Turn off AllGroupsCollector for now -- it's very slow:
-          if (false && doCountGroups) {
-            allGroupsCollector = new AllGroupsCollector(new TermGroupSelector(group));
-            //c = MultiCollector.wrap(allGroupsCollector, c1);
-            c = c1;
+          final GroupCountCollector groupCountCollector;
+          // NOTE: AllGroupsCollector is very slow; this one counts ords instead:
+          if (doCountGroups) {
+            groupCountCollector = new GroupCountCollector(group, state.getGroupOrdinalMap(searcher.getIndexReader(), group));
+            c = MultiCollector.wrap(groupCountCollector, c1);
           } else {
-            allGroupsCollector = null;
+            groupCountCollector = null;
             c = c1;
           }
           
@@ -170,37 +206,29 @@ final class SearchTask extends Task {
             final TopGroupsCollector<BytesRef> c2 = new TopGroupsCollector<>(new TermGroupSelector(group), topGroups, Sort.RELEVANCE, Sort.RELEVANCE, 10, true, true, true);
             searcher.search(q, c2);
             groupsResultTerms = c2.getTopGroups(0);
-            if (allGroupsCollector != null) {
+            if (groupCountCollector != null) {
               groupsResultTerms = new TopGroups<BytesRef>(groupsResultTerms,
-                                                          allGroupsCollector.getGroupCount());
+                                                          groupCountCollector.getGroupCount());
             }
             if (doHilite) {
               hilite(groupsResultTerms, state, searcher);
             }
           }
         }
-      } else if (!facetRequests.isEmpty()) {
+      } else if (doDrillSideways || !facetRequests.isEmpty()) {
         // TODO: support sort, filter too!!
         // TODO: support other facet methods
         if (doDrillSideways) {
-          // nocommit todo
-          hits = null;
-          facetResults = null;
+          drillSideways(state, searcher);
         } else if (q instanceof MatchAllDocsQuery) {
           facetResults = new ArrayList<FacetResult>();
           long t0 = System.nanoTime();
+          final Map<String,Facets> facetsByField = new HashMap<>();
           for(String request : facetRequests) {
             if (request.startsWith("range:")) {
               throw new AssertionError("fix me!");
-            } else if (request.endsWith(".taxonomy")) {
-              // TODO: fixme to handle N facets in one indexed field!  Need to make the facet counts once per indexed field...
-              Facets facets = new FastTaxonomyFacetCounts(state.facetsConfig.getDimConfig(request).indexFieldName, searcher.getIndexReader(), state.taxoReader, state.facetsConfig);
-              facetResults.add(facets.getTopChildren(10, request));
-            } else if (request.endsWith(".sortedset")) {
-              // TODO: fixme to handle N facets in one SSDV field!  Need to make the facet counts once per indexed field...
-              SortedSetDocValuesReaderState ssdvFacetsState = state.getSortedSetReaderState(state.facetsConfig.getDimConfig(request).indexFieldName);
-              SortedSetDocValuesFacetCounts facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState);
-              facetResults.add(facets.getTopChildren(10, request));
+            } else if (request.endsWith(".taxonomy") || request.endsWith(".sortedset")) {
+              facetResults.add(getFacets(facetsByField, state, searcher, null, request).getTopChildren(10, request));
             } else {
               // should have been prevented higher up:
               throw new AssertionError("unknown facet method \"" + state.facetFields.get(request) + "\"");
@@ -212,6 +240,7 @@ final class SearchTask extends Task {
           FacetsCollector fc = new FacetsCollector();
           hits = FacetsCollector.search(searcher, q, 10, fc);
           long t0 = System.nanoTime();
+          final Map<String,Facets> facetsByField = new HashMap<>();
           for(String request : facetRequests) {
             if (request.startsWith("range:")) {
               int i = request.indexOf(':', 6);
@@ -233,15 +262,8 @@ final class SearchTask extends Task {
               }
               LongRangeFacetCounts facets = new LongRangeFacetCounts(field, fc, ranges);
               facetResults.add(facets.getTopChildren(ranges.length, field));
-            } else if (request.endsWith(".taxonomy")) {
-              // TODO: fixme to handle N facets in one indexed field!  Need to make the facet counts once per indexed field...
-              Facets facets = new FastTaxonomyFacetCounts(state.facetsConfig.getDimConfig(request).indexFieldName, state.taxoReader, state.facetsConfig, fc);
-              facetResults.add(facets.getTopChildren(10, request));
-            } else if (request.endsWith(".sortedset")) {
-              // TODO: fixme to handle N facets in one SSDV field!  Need to make the facet counts once per indexed field...
-              SortedSetDocValuesReaderState ssdvFacetsState = state.getSortedSetReaderState(state.facetsConfig.getDimConfig(request).indexFieldName);
-              SortedSetDocValuesFacetCounts facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState, fc);
-              facetResults.add(facets.getTopChildren(10, request));
+            } else if (request.endsWith(".taxonomy") || request.endsWith(".sortedset")) {
+              facetResults.add(getFacets(facetsByField, state, searcher, fc, request).getTopChildren(10, request));
             } else {
               // should have been prevented higher up:
               throw new AssertionError("unknown facet method \"" + state.facetFields.get(request) + "\"");
@@ -250,12 +272,22 @@ final class SearchTask extends Task {
           getFacetResultsMsec = (System.nanoTime() - t0)/1000000.0;
         }
       } else if (s == null) {
-        hits = searcher.search(q, topN);
+        final long budgetMsec = state.getTimeBudgetMsec(category);
+        if (budgetMsec > 0) {
+          hits = searchTopHits(searcher, false, budgetMsec);
+        } else {
+          hits = searcher.search(q, topN);
+        }
         if (doHilite) {
           hilite(hits, state, searcher, q);
         }
       } else {
-        hits = searcher.search(q, topN, s);
+        final long budgetMsec = state.getTimeBudgetMsec(category);
+        if (earlyTerminate || budgetMsec > 0) {
+          hits = searchTopHits(searcher, earlyTerminate && canEarlyTerminate(searcher), budgetMsec);
+        } else {
+          hits = searcher.search(q, topN, s);
+        }
         if (doHilite) {
           hilite(hits, state, searcher, q);
         }
@@ -276,10 +308,11 @@ final class SearchTask extends Task {
         totalHitCount = (int) hits.totalHits;
 
         if (doStoredLoads) {
-          for (int i = 0; i < hits.scoreDocs.length; i++) {
-            ScoreDoc scoreDoc = hits.scoreDocs[i];
-            searcher.doc(scoreDoc.doc);
-          }
+          final long t0 = System.nanoTime();
+          StoredDocLoader.load(searcher, hits.scoreDocs);
+          final long t1 = System.nanoTime();
+          fetchMsec = (t1-t0)/1000000.0;
+          recordStage("fetch", t1-t0);
         }
 
       } else if (groupsResultBlock != null) {
@@ -291,46 +324,321 @@ final class SearchTask extends Task {
       //System.out.println("TE: " + TermsEnum.getStats());
     } finally {
       state.mgr.release(searcher);
+      currentCategory.remove();
       fieldQuery = null;
       highlighter = null;
     }
   }
 
+  /** True if every segment is sorted by a sort that s is a prefix of, so each one can stop after its first topN
+   *  hits. */
+  private boolean canEarlyTerminate(IndexSearcher searcher) {
+    for(LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      final Sort segmentSort = ctx.reader().getMetaData().getSort();
+      if (segmentSort == null || EarlyTerminatingSortingCollector.canEarlyTerminate(s, segmentSort) == false) {
+        earlyTerminateApplied = false;
+        return false;
+      }
+    }
+    earlyTerminateApplied = true;
+    return true;
+  }
+
+  /** Same as IndexSearcher.search(Query,int[,Sort]), and through the same CollectorManager path, so sliced and
+   *  sharded searchers still search concurrently, except each slice's collector may collect at most topN hits per
+   *  segment (then the total hit count is only a lower bound), and/or stop once budgetMsec (if > 0) has passed, as
+   *  measured by TimeLimitingCollector's global clock, keeping the hits collected so far. */
+  private TopDocs searchTopHits(IndexSearcher searcher, final boolean doEarlyTerminate, final long budgetMsec) throws IOException {
+    final int numHits = Math.max(1, Math.min(topN, searcher.getIndexReader().maxDoc()));
+    // Start the clock now, for all slices, so query rewriting (e.g.
+    // wildcard and fuzzy term expansion) counts against the budget too:
+    final long baseline = TimeLimitingCollector.getGlobalCounter().get();
+    return searcher.search(q, new CollectorManager<TopHitsCollector,TopDocs>() {
+        @Override
+        public TopHitsCollector newCollector() {
+          final TopDocsCollector<?> topHits;
+          if (s == null) {
+            topHits = TopScoreDocCollector.create(numHits);
+          } else {
+            // Same collector settings as IndexSearcher.search(Query,int,Sort):
+            topHits = TopFieldCollector.create(s, numHits, true, false, false);
+          }
+          Collector c = topHits;
+          EarlyTerminatingSortingCollector earlyTerminating = null;
+          if (doEarlyTerminate) {
+            earlyTerminating = new EarlyTerminatingSortingCollector(c, s, numHits);
+            c = earlyTerminating;
+          }
+          if (budgetMsec > 0) {
+            final TimeLimitingCollector tlc = new TimeLimitingCollector(c, TimeLimitingCollector.getGlobalCounter(), budgetMsec);
+            tlc.setBaseline(baseline);
+            c = tlc;
+          }
+          return new TopHitsCollector(c, topHits, earlyTerminating);
+        }
+
+        @Override
+        public TopDocs reduce(Collection<TopHitsCollector> collectors) {
+          final TopDocs[] topDocs = s == null ? new TopDocs[collectors.size()] : new TopFieldDocs[collectors.size()];
+          int i = 0;
+          for(TopHitsCollector collector : collectors) {
+            topDocs[i++] = collector.topHits.topDocs();
+            if (collector.earlyTerminating != null && collector.earlyTerminating.terminatedEarly()) {
+              terminatedEarly = true;
+            }
+            if (collector.timedOut) {
+              timedOut = true;
+            }
+          }
+          if (s == null) {
+            return TopDocs.merge(numHits, topDocs);
+          } else {
+            return TopDocs.merge(s, numHits, (TopFieldDocs[]) topDocs);
+          }
+        }
+      });
+  }
+
+  // One slice's collector for searchTopHits.  When the slice runs out
+  // of time budget it stops collecting, instead of throwing
+  // TimeExceededException out of the search, so the other slices
+  // still finish and their hits are merged:
+  private static final class TopHitsCollector extends FilterCollector {
+    final TopDocsCollector<?> topHits;
+    final EarlyTerminatingSortingCollector earlyTerminating;
+    boolean timedOut;
+
+    TopHitsCollector(Collector in, TopDocsCollector<?> topHits, EarlyTerminatingSortingCollector earlyTerminating) {
+      super(in);
+      this.topHits = topHits;
+      this.earlyTerminating = earlyTerminating;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+      final LeafCollector leafCollector;
+      try {
+        leafCollector = super.getLeafCollector(context);
+      } catch (TimeLimitingCollector.TimeExceededException tee) {
+        timedOut = true;
+        throw new CollectionTerminatedException();
+      }
+      return new FilterLeafCollector(leafCollector) {
+        @Override
+        public void collect(int doc) throws IOException {
+          try {
+            super.collect(doc);
+          } catch (TimeLimitingCollector.TimeExceededException tee) {
+            timedOut = true;
+            throw new CollectionTerminatedException();
+          }
+        }
+      };
+    }
+  }
+
+  public Query getQuery() {
+    return q;
+  }
+
+  public int getTopN() {
+    return topN;
+  }
+
+  /** True if this task only gets the top hits by relevance, so BatchSearchTask can run it. */
+  public boolean isBatchable() {
+    return s == null && group == null && facetRequests.isEmpty() && doHilite == false && doDrillSideways == false;
+  }
+
+  public boolean isEarlyTerminate() {
+    return earlyTerminate;
+  }
+
+  public boolean getEarlyTerminateApplied() {
+    return earlyTerminateApplied;
+  }
+
+  public boolean getTerminatedEarly() {
+    return terminatedEarly;
+  }
+
+  /** Returns the exact number of hits for this task's query. */
+  public int countAllHits(IndexSearcher searcher) throws IOException {
+    return searcher.count(q);
+  }
+
+  private void drillSideways(final IndexState indexState, IndexSearcher searcher) throws IOException {
+    if (q instanceof DrillDownQuery == false) {
+      throw new IllegalStateException("+drillSideways requires a DrillDownQuery; got: " + q);
+    }
+    final DrillDownQuery ddq = (DrillDownQuery) q;
+
+    // Count each requested dim, plus each drilled down dim that has a
+    // facet method, from the sideways collector if it was drilled
+    // down on, else from the drill down hits.  This also handles
+    // dims with their own index field (taxonomy and sortedset),
+    // unlike DrillSideways' default facets:
+    final List<String> countDims = new ArrayList<>();
+    final DrillSideways ds = new DrillSideways(searcher, indexState.facetsConfig, indexState.taxoReader, null, indexState.drillSidewaysExecutor) {
+        @Override
+        protected Facets buildFacetsResult(FacetsCollector drillDowns, FacetsCollector[] drillSideways, String[] drillSidewaysDims) throws IOException {
+          final Map<String,Facets> dimFacets = new HashMap<>();
+          // Dims counted from the drill down hits share counts per indexed field:
+          final Map<String,Facets> drillDownFacetsByField = new HashMap<>();
+          countDims.addAll(facetRequests);
+          if (drillSidewaysDims != null) {
+            for(String dim : drillSidewaysDims) {
+              if ((dim.endsWith(".taxonomy") || dim.endsWith(".sortedset")) && countDims.contains(dim) == false) {
+                countDims.add(dim);
+              }
+            }
+          }
+          for(String request : countDims) {
+            FacetsCollector fc = null;
+            if (drillSideways != null) {
+              for(int i=0;i<drillSidewaysDims.length;i++) {
+                if (drillSidewaysDims[i].equals(request)) {
+                  fc = drillSideways[i];
+                  break;
+                }
+              }
+            }
+            final long t0 = System.nanoTime();
+            if (request.endsWith(".taxonomy") == false && request.endsWith(".sortedset") == false) {
+              throw new IllegalArgumentException("+drillSideways only supports taxonomy and sortedset facets; got: " + request);
+            } else if (fc == null) {
+              dimFacets.put(request, getFacets(drillDownFacetsByField, indexState, searcher, drillDowns, request));
+            } else {
+              // Sideways counts are only used for this one dim:
+              dimFacets.put(request, getFacets(new HashMap<String,Facets>(), indexState, searcher, fc, request));
+            }
+            recordStage("facet:" + request, System.nanoTime() - t0);
+          }
+          return new MultiFacets(dimFacets);
+        }
+      };
+
+    final Facets facets;
+    if (indexState.drillSidewaysExecutor == null) {
+      DrillSideways.DrillSidewaysResult result = ds.search(ddq, topN);
+      hits = result.hits;
+      facets = result.facets;
+    } else {
+      DrillSideways.ConcurrentDrillSidewaysResult<TopDocs> result = ds.search(ddq, new CollectorManager<TopScoreDocCollector,TopDocs>() {
+          @Override
+          public TopScoreDocCollector newCollector() {
+            return TopScoreDocCollector.create(topN);
+          }
+
+          @Override
+          public TopDocs reduce(Collection<TopScoreDocCollector> collectors) {
+            final TopDocs[] topDocs = new TopDocs[collectors.size()];
+            int i = 0;
+            for(TopScoreDocCollector collector : collectors) {
+              topDocs[i++] = collector.topDocs();
+            }
+            return TopDocs.merge(topN, topDocs);
+          }
+        });
+      hits = result.collectorResult;
+      facets = result.facets;
+    }
+
+    facetResults = new ArrayList<FacetResult>();
+    long t0 = System.nanoTime();
+    for(String request : countDims) {
+      final long t1 = System.nanoTime();
+      facetResults.add(facets.getTopChildren(10, request));
+      recordStage("facet:" + request, System.nanoTime() - t1);
+    }
+    getFacetResultsMsec = (System.nanoTime() - t0)/1000000.0;
+  }
+
+  /** Returns the counts for the indexed field holding this taxonomy or sortedset dim, counting each field (from fc,
+   *  or all docs if fc is null) only once across all of its dims. */
+  private static Facets getFacets(Map<String,Facets> facetsByField, IndexState state, IndexSearcher searcher,
+                                  FacetsCollector fc, String request) throws IOException {
+    final String indexFieldName = state.facetsConfig.getDimConfig(request).indexFieldName;
+    Facets facets = facetsByField.get(indexFieldName);
+    if (facets == null) {
+      if (request.endsWith(".taxonomy")) {
+        if (fc == null) {
+          facets = new FastTaxonomyFacetCounts(indexFieldName, searcher.getIndexReader(), state.taxoReader, state.facetsConfig);
+        } else {
+          facets = new FastTaxonomyFacetCounts(indexFieldName, state.taxoReader, state.facetsConfig, fc);
+        }
+      } else {
+        SortedSetDocValuesReaderState ssdvFacetsState = state.getSortedSetReaderState(searcher.getIndexReader(), indexFieldName);
+        if (fc == null) {
+          facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState);
+        } else {
+          facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState, fc);
+        }
+      }
+      facetsByField.put(indexFieldName, facets);
+    }
+    return facets;
+  }
+
   private void hilite(TopGroups<?> groups, IndexState indexState, IndexSearcher searcher) throws IOException {
-    for(GroupDocs<?> group : groups.groups) {
-      for(ScoreDoc sd : group.scoreDocs) {
-        hilite(sd.doc, indexState, searcher);
+    long t0 = System.nanoTime();
+    if (indexState.useUnifiedHighlighter) {
+      // Highlight all groups' docs in one batch:
+      int count = 0;
+      for(GroupDocs<?> group : groups.groups) {
+        count += group.scoreDocs.length;
+      }
+      int[] docIDs = new int[count];
+      int upto = 0;
+      for(GroupDocs<?> group : groups.groups) {
+        for(ScoreDoc sd : group.scoreDocs) {
+          docIDs[upto++] = sd.doc;
+        }
+      }
+      hiliteUnified(docIDs, indexState, searcher);
+    } else {
+      for(GroupDocs<?> group : groups.groups) {
+        for(ScoreDoc sd : group.scoreDocs) {
+          hilite(sd.doc, indexState, searcher);
+        }
+      }
+    }
+    long t1 = System.nanoTime();
+    hiliteMsec = (t1-t0)/1000000.0;
+    recordStage("hilite", t1-t0);
+  }
+
+  // Highlights all docs in one call, which visits them in docID order:
+  private void hiliteUnified(int[] docIDs, IndexState indexState, IndexSearcher searcher) throws IOException {
+    final UnifiedHighlighter uh = indexState.newUnifiedHighlighter(searcher);
+    final String[] fields = new String[] {indexState.textFieldName};
+    final String[] frags = uh.highlightFields(fields, q, docIDs, new int[] {2}).get(indexState.textFieldName);
+    for(String frag : frags) {
+      // It's fine for frag to be null: it's a placeholder,
+      // meaning this hit had no hilite
+      if (frag != null) {
+        totHiliteHash += frag.hashCode();
       }
     }
   }
 
   private void hilite(TopDocs hits, IndexState indexState, IndexSearcher searcher, Query query) throws IOException {
     long t0 = System.nanoTime();
+    // NOTE: every highlighter asks for at most 2 fragments (passages) per hit:
     if (indexState.fastHighlighter != null || indexState.useHighlighter) {
       for(ScoreDoc sd : hits.scoreDocs) {
         hilite(sd.doc, indexState, searcher);
       }
-      //System.out.println("  q=" + query + ": hilite time: " + ((t1-t0)/1000000.0));
     } else {
-      // TODO: why is this one finding 2 frags when the others find 1?
-      /*
-      String[] frags = indexState.postingsHighlighter.highlight(indexState.textFieldName, query, searcher, hits, 2);
-      //System.out.println("  q=" + query + ": hilite time: " + ((t1-t0)/1000000.0));
-      for(int hit=0;hit<frags.length;hit++) {
-        String frag = frags[hit];
-        //System.out.println("  title=" + searcher.doc(hits.scoreDocs[hit].doc).get("titleTokenized"));
-        //System.out.println("    frags: " + frag);
-        if (frag != null) {
-          // It's fine for frag to be null: it's a
-          // placeholder, meaning this hit had no hilite
-          totHiliteHash += frag.hashCode();
-        }
+      int[] docIDs = new int[hits.scoreDocs.length];
+      for(int hit=0;hit<docIDs.length;hit++) {
+        docIDs[hit] = hits.scoreDocs[hit].doc;
       }
-      */
-      // TODO: switch to UnifiedHighlighter
+      hiliteUnified(docIDs, indexState, searcher);
     }
     long t1 = System.nanoTime();
     hiliteMsec = (t1-t0)/1000000.0;
+    recordStage("hilite", t1-t0);
   }
 
   public int totHiliteHash;
@@ -388,6 +696,9 @@ final class SearchTask extends Task {
       if (topN != otherSearchTask.topN) {
         return false;
       }
+      if (earlyTerminate != otherSearchTask.earlyTerminate) {
+        return false;
+      }
 
       if (group != null && !group.equals(otherSearchTask.group)) {
         return false;
@@ -528,6 +839,9 @@ final class SearchTask extends Task {
       if (hiliteMsec > 0) {
         out.println(String.format("  hilite time %.4f msec", hiliteMsec));
       }
+      if (fetchMsec > 0) {
+        out.println(String.format("  fetch time %.4f msec", fetchMsec));
+      }
       if (getFacetResultsMsec > 0) {
         out.println(String.format("  getFacetResults time %.4f msec", getFacetResultsMsec));
       }
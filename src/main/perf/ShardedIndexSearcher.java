@@ -0,0 +1,142 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+
+// IndexSearcher over several separately opened shard indexes, as
+// one MultiReader.  Searches that go through a CollectorManager
+// (search(Query,int), search(Query,int,Sort), and the +earlyTerminate
+// and time budget searches) scatter to one collector per shard on
+// the executor and gather with CollectorManager.reduce (TopDocs.merge),
+// like a sharded search node would; everything else (facets,
+// grouping, PK lookups, ...) runs over the MultiReader as usual.
+// The Weight is created once per query, over the MultiReader, so
+// each query term's global statistics are computed once however many
+// shards there are, and results and checksums are the same for any
+// number of shards:
+class ShardedIndexSearcher extends IndexSearcher {
+
+  // Each shard's leaves, as leaves of the MultiReader:
+  private final List<List<LeafReaderContext>> shardLeaves;
+  private final ExecutorService executor;
+
+  private final AtomicLong searchCount = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong mergeNanos = new AtomicLong();
+
+  public ShardedIndexSearcher(DirectoryReader[] shardReaders, ExecutorService executor) throws IOException {
+    super(new MultiReader(shardReaders));
+    this.executor = executor;
+    shardLeaves = new ArrayList<>();
+    final List<LeafReaderContext> leaves = getIndexReader().leaves();
+    int upto = 0;
+    for(DirectoryReader shardReader : shardReaders) {
+      final int numLeaves = shardReader.leaves().size();
+      shardLeaves.add(leaves.subList(upto, upto + numLeaves));
+      upto += numLeaves;
+    }
+  }
+
+  public int getShardCount() {
+    return shardLeaves.size();
+  }
+
+  @Override
+  public <C extends Collector, T> T search(Query query, CollectorManager<C, T> collectorManager) throws IOException {
+    final long t0 = System.nanoTime();
+    final List<C> collectors = new ArrayList<>(shardLeaves.size());
+    for(int i=0;i<shardLeaves.size();i++) {
+      final C collector = collectorManager.newCollector();
+      if (i > 0 && collector.needsScores() != collectors.get(0).needsScores()) {
+        throw new IllegalStateException("all collectors from the CollectorManager must agree on needsScores");
+      }
+      collectors.add(collector);
+    }
+    final Weight weight = createNormalizedWeight(query, collectors.get(0).needsScores());
+    scatter(weight, collectors);
+    final long t1 = System.nanoTime();
+    final T result = collectorManager.reduce(collectors);
+    final long t2 = System.nanoTime();
+    record(t0, t1, t2);
+    return result;
+  }
+
+  /** Runs the weight on every shard concurrently, into that shard's collector, and waits for all of them. */
+  private <C extends Collector> void scatter(final Weight weight, List<C> collectors) throws IOException {
+    final List<Future<Void>> futures = new ArrayList<>();
+    for(int i=0;i<shardLeaves.size();i++) {
+      final List<LeafReaderContext> leaves = shardLeaves.get(i);
+      final C collector = collectors.get(i);
+      futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            search(leaves, weight, collector);
+            return null;
+          }
+        }));
+    }
+    for(Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException ie) {
+        throw new RuntimeException(ie);
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof IOException) {
+          throw (IOException) ee.getCause();
+        }
+        throw new RuntimeException(ee.getCause());
+      }
+    }
+  }
+
+  private void record(long t0, long t1, long t2) {
+    searchCount.incrementAndGet();
+    totalNanos.addAndGet(t2-t0);
+    mergeNanos.addAndGet(t2-t1);
+  }
+
+  /** Prints how long scatter-gather searches took, and how much of that was the merge. */
+  public void printStats(PrintStream out) {
+    final long count = searchCount.get();
+    out.println("\nSHARDS: " + shardLeaves.size() + " shards; " + count + " scatter-gather searches");
+    if (count > 0) {
+      out.println(String.format(Locale.ROOT, "  %.3f msec per search; %.4f msec merge (%.1f%%)",
+                                totalNanos.get()/1000000.0/count, mergeNanos.get()/1000000.0/count,
+                                100.0*mergeNanos.get()/totalNanos.get()));
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+
+// IndexSearcher that, when given an executor, searches groups of
+// segments ("slices") concurrently for each query.  Lucene's default
+// is one slice per segment; here we can also pack several adjacent
+// segments into one slice, up to a max doc count or segment count.
+// Queries whose estimated cost is below minParallelCost run inline on
+// the calling thread instead.  The estimate is the sum of the docFreq
+// of the query's scoring terms, taken from the TermContexts that
+// creating the Weight looks up anyway, so it costs no extra term
+// dictionary seeks.  Queries with no scoring terms (e.g. points
+// queries, or queries that don't need scores, such as sorted ones)
+// have unknown cost and are always searched concurrently:
+class SlicedIndexSearcher extends IndexSearcher {
+
+  // NOTE: IndexSearcher computes its slices from its ctor, before
+  // any subclass fields are assigned, so these are set once from the
+  // command line before any searcher is created:
+  static int maxDocsPerSlice = Integer.MAX_VALUE;
+  static int maxSegmentsPerSlice = 1;
+
+  // 0 means always search slices concurrently:
+  static long minParallelCost = 0;
+
+  // category -> {inline count, parallel count, of which unknown cost}:
+  private static final ConcurrentHashMap<String,AtomicLong[]> decisions = new ConcurrentHashMap<>();
+
+  // {sum of docFreq, number of terms} of the scoring terms seen while
+  // the current thread creates a Weight, or null if not estimating:
+  private final ThreadLocal<long[]> termCost = new ThreadLocal<>();
+
+  private final ExecutorService executor;
+
+  // Same slices as IndexSearcher.leafSlices, whose leaves we can't see:
+  private final List<LeafReaderContext[]> sliceLeaves;
+
+  private SlicedIndexSearcher(IndexReader reader, ExecutorService executor) {
+    super(reader, executor);
+    this.executor = executor;
+    this.sliceLeaves = groupLeaves(reader.leaves());
+  }
+
+  /** Returns a plain IndexSearcher if executor is null. */
+  public static IndexSearcher create(IndexReader reader, ExecutorService executor) {
+    if (executor == null) {
+      return new IndexSearcher(reader);
+    } else {
+      return new SlicedIndexSearcher(reader, executor);
+    }
+  }
+
+  // Same as IndexSearcher.search(Query,CollectorManager), except the
+  // query runs inline when it is cheap, or when there is only one slice:
+  @Override
+  public <C extends Collector, T> T search(Query query, CollectorManager<C, T> collectorManager) throws IOException {
+    final C firstCollector = collectorManager.newCollector();
+    final long[] cost = new long[2];
+    termCost.set(cost);
+    final Weight weight;
+    try {
+      weight = createNormalizedWeight(query, firstCollector.needsScores());
+    } finally {
+      termCost.remove();
+    }
+    final List<LeafReaderContext> leaves = getIndexReader().leaves();
+
+    boolean parallel = sliceLeaves.size() > 1;
+    final boolean unknownCost = cost[1] == 0;
+    if (parallel && minParallelCost > 0 && unknownCost == false) {
+      parallel = cost[0] >= minParallelCost;
+    }
+    recordDecision(parallel, parallel && unknownCost);
+
+    if (parallel == false) {
+      search(leaves, weight, firstCollector);
+      return collectorManager.reduce(Collections.singletonList(firstCollector));
+    }
+
+    final List<C> collectors = new ArrayList<>(sliceLeaves.size());
+    collectors.add(firstCollector);
+    for(int i=1;i<sliceLeaves.size();i++) {
+      final C collector = collectorManager.newCollector();
+      if (collector.needsScores() != firstCollector.needsScores()) {
+        throw new IllegalStateException("all collectors from the CollectorManager must agree on needsScores");
+      }
+      collectors.add(collector);
+    }
+    final List<Future<C>> futures = new ArrayList<>(sliceLeaves.size());
+    for(int i=0;i<sliceLeaves.size();i++) {
+      final List<LeafReaderContext> slice = Arrays.asList(sliceLeaves.get(i));
+      final C collector = collectors.get(i);
+      futures.add(executor.submit(new Callable<C>() {
+          @Override
+          public C call() throws Exception {
+            search(slice, weight, collector);
+            return collector;
+          }
+        }));
+    }
+    for(Future<C> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException ie) {
+        throw new RuntimeException(ie);
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof IOException) {
+          throw (IOException) ee.getCause();
+        }
+        throw new RuntimeException(ee.getCause());
+      }
+    }
+    return collectorManager.reduce(collectors);
+  }
+
+  @Override
+  public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+    final long[] cost = termCost.get();
+    if (cost != null) {
+      cost[0] += context.docFreq();
+      cost[1]++;
+    }
+    return super.termStatistics(term, context);
+  }
+
+  private static void recordDecision(boolean parallel, boolean unknownCost) {
+    String category = Task.currentCategory.get();
+    if (category == null) {
+      category = "<none>";
+    }
+    AtomicLong[] counts = decisions.get(category);
+    if (counts == null) {
+      counts = new AtomicLong[] {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+      final AtomicLong[] prev = decisions.putIfAbsent(category, counts);
+      if (prev != null) {
+        counts = prev;
+      }
+    }
+    counts[parallel ? 1 : 0].incrementAndGet();
+    if (unknownCost) {
+      counts[2].incrementAndGet();
+    }
+  }
+
+  /** Prints, per category, how often queries were searched concurrently vs inline. */
+  public static void printDecisionStats(PrintStream out) {
+    if (decisions.isEmpty()) {
+      return;
+    }
+    out.println("\nPARALLEL SEARCH (min cost " + minParallelCost + "):");
+    for(Map.Entry<String,AtomicLong[]> ent : new TreeMap<>(decisions).entrySet()) {
+      final long inline = ent.getValue()[0].get();
+      final long parallel = ent.getValue()[1].get();
+      final long unknownCost = ent.getValue()[2].get();
+      out.println(String.format(Locale.ROOT, "  %s: %.1f%% parallel (%d parallel, of which %d unknown cost; %d inline)",
+                                ent.getKey(), 100.0*parallel/(inline+parallel), parallel, unknownCost, inline));
+    }
+  }
+
+  @Override
+  protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+    final List<LeafReaderContext[]> groups = groupLeaves(leaves);
+    final LeafSlice[] slices = new LeafSlice[groups.size()];
+    for(int i=0;i<slices.length;i++) {
+      slices[i] = new LeafSlice(groups.get(i));
+    }
+    return slices;
+  }
+
+  private static List<LeafReaderContext[]> groupLeaves(List<LeafReaderContext> leaves) {
+    // Each slice is a run of adjacent segments, and slices are in
+    // docBase order: TopDocs.merge breaks score (and sort) ties by
+    // slice index, so only then are tied hits returned in docID order,
+    // the same as an IndexSearcher without slices:
+    List<LeafReaderContext[]> slices = new ArrayList<>();
+    List<LeafReaderContext> current = new ArrayList<>();
+    long currentDocs = 0;
+    for(LeafReaderContext ctx : leaves) {
+      int maxDoc = ctx.reader().maxDoc();
+      if (current.isEmpty() == false && (current.size() >= maxSegmentsPerSlice || currentDocs + maxDoc > maxDocsPerSlice)) {
+        slices.add(current.toArray(new LeafReaderContext[current.size()]));
+        current.clear();
+        currentDocs = 0;
+      }
+      current.add(ctx);
+      currentDocs += maxDoc;
+    }
+    if (current.isEmpty() == false) {
+      slices.add(current.toArray(new LeafReaderContext[current.size()]));
+    }
+
+    return slices;
+  }
+}
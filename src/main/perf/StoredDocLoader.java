@@ -0,0 +1,85 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+
+// Loads the stored fields for the top hits in docID order, one
+// segment at a time, instead of calling IndexSearcher.doc in score
+// order: consecutive hits in the same compressed block then reuse
+// the block the stored fields reader already has, and each segment
+// asks for its (per-thread) StoredFieldsReader clone only once:
+final class StoredDocLoader {
+
+  private StoredDocLoader() {
+  }
+
+  /** Returns the stored documents for these hits, in the same order as the hits. */
+  public static Document[] load(IndexSearcher searcher, ScoreDoc[] hits) throws IOException {
+    // docID in the high int, hit index in the low int, so one sort
+    // orders the hits by docID:
+    final long[] sorted = new long[hits.length];
+    for(int i=0;i<hits.length;i++) {
+      sorted[i] = (((long) hits[i].doc) << 32) | i;
+    }
+    Arrays.sort(sorted);
+
+    final Document[] docs = new Document[hits.length];
+    final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    int leafIndex = -1;
+    LeafReaderContext leaf = null;
+    StoredFieldsReader fieldsReader = null;
+    for(long v : sorted) {
+      final int docID = (int) (v >>> 32);
+      final int hitIndex = (int) v;
+      if (leaf == null || docID >= leaf.docBase + leaf.reader().maxDoc()) {
+        // Hits are sorted, so the next segment is always forward:
+        do {
+          leafIndex++;
+          leaf = leaves.get(leafIndex);
+        } while (docID >= leaf.docBase + leaf.reader().maxDoc());
+        final LeafReader reader = leaf.reader();
+        if (reader instanceof CodecReader) {
+          // SegmentReader hands out a thread-private clone:
+          fieldsReader = ((CodecReader) reader).getFieldsReader();
+        } else {
+          fieldsReader = null;
+        }
+      }
+      final DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+      if (fieldsReader != null) {
+        fieldsReader.visitDocument(docID - leaf.docBase, visitor);
+      } else {
+        leaf.reader().document(docID - leaf.docBase, visitor);
+      }
+      docs[hitIndex] = visitor.getDocument();
+    }
+    return docs;
+  }
+}
@@ -19,6 +19,8 @@ package perf;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
 
 // Abstract class representing a single task (one query,
 // one batch of PK lookups, on respell).  Each Task
@@ -37,12 +39,48 @@ abstract class Task {
 
   public abstract String getCategory();
 
+  // Category of the task running on the current thread, set by
+  // SearchTask and BatchSearchTask for the per-category query cache
+  // and parallel search stats:
+  static final ThreadLocal<String> currentCategory = new ThreadLocal<>();
+
   @Override
   public abstract Task clone();
 
   // these are set once the task is executed
   public long runTimeNanos;
   public int threadID;
+  // time from recvTimeNS until a thread started the task; only
+  // meaningful when the task source sets recvTimeNS:
+  public long queueTimeNanos;
+  // CPU time and heap bytes allocated by the thread running go;
+  // -1 unless TaskStats is measuring them (and the JVM supports it):
+  public long cpuTimeNanos = -1;
+  public long allocatedBytes = -1;
+  // set by go when the task hit its time budget and stopped early
+  // with partial results, which are then not verified:
+  public boolean timedOut;
+  // optional time spent in named stages of go (e.g. hilite),
+  // summarized per category by TaskStats:
+  public Map<String,Long> stageNanos;
+
+  protected void recordStage(String stage, long nanos) {
+    if (stageNanos == null) {
+      stageNanos = new TreeMap<>();
+    }
+    final Long prev = stageNanos.get(stage);
+    stageNanos.put(stage, prev == null ? nanos : prev + nanos);
+  }
+
+  // Set by streaming verification (LocalTaskSource) when this task's
+  // results matched an earlier instance of the same task and were
+  // dropped: print that instance's results instead:
+  public Task sameResultsAs;
+
+  // Called after go and checksum, to drop the (possibly large)
+  // results once they are no longer needed:
+  public void clearResults() {
+  }
 
   // Called after go, to return "summary" of the results.
   // This may use volatile docIDs -- the checksum is just
@@ -0,0 +1,84 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+
+// Bounded cache from task text to a parsed, never executed, Task
+// prototype; callers get a clone.  Repeated (head) queries then
+// skip the regexps and QueryParser.  This is safe to use from many
+// threads: since TaskParser (its QueryParser) is not thread safe,
+// each thread parses misses with its own copy, without locking.
+// When full, an arbitrary entry is evicted, which is cheap and good
+// enough for skewed query logs:
+class TaskCache {
+  private final ThreadLocal<TaskParser> taskParsers;
+  private final int maxSize;
+  private final ConcurrentHashMap<String,Task> cache = new ConcurrentHashMap<>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /** If maxSize is 0, nothing is cached and every call parses. */
+  public TaskCache(final TaskParser taskParser, int maxSize) {
+    taskParsers = new ThreadLocal<TaskParser>() {
+        @Override
+        protected TaskParser initialValue() {
+          return taskParser.newInstance();
+        }
+      };
+    this.maxSize = maxSize;
+  }
+
+  public Task parseOneTask(String text) throws ParseException {
+    Task prototype = cache.get(text);
+    if (prototype != null) {
+      hitCount.incrementAndGet();
+      return prototype.clone();
+    }
+    missCount.incrementAndGet();
+    prototype = taskParsers.get().parseOneTask(text);
+    if (maxSize == 0) {
+      return prototype;
+    }
+    if (cache.size() >= maxSize) {
+      Iterator<String> it = cache.keySet().iterator();
+      if (it.hasNext()) {
+        it.next();
+        it.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+    cache.put(text, prototype);
+    return prototype.clone();
+  }
+
+  @Override
+  public String toString() {
+    final long hits = hitCount.get();
+    final long lookups = hits + missCount.get();
+    return String.format(Locale.ROOT, "TaskCache: size=%d maxSize=%d lookups=%d hitRate=%.1f%% evictions=%d",
+                         cache.size(), maxSize, lookups, lookups == 0 ? 0.0 : 100.0*hits/lookups, evictionCount.get());
+  }
+}
@@ -74,6 +74,12 @@ class TaskParser {
     lastModNDVSort = new Sort(new SortField("lastModNDV", SortField.Type.LONG));
   }
 
+  /** Returns a new TaskParser like this one, with its own QueryParser (same default field and analyzer), for use
+   *  on another thread, since QueryParser is not thread safe. */
+  public TaskParser newInstance() {
+    return new TaskParser(state, new QueryParser(queryParser.getField(), queryParser.getAnalyzer()), fieldName, topN, random, doStoredLoads);
+  }
+
   private final static Pattern filterPattern = Pattern.compile(" \\+filter=([0-9\\.]+)%");
   private final static Pattern minShouldMatchPattern = Pattern.compile(" \\+minShouldMatch=(\\d+)($| )");
 
@@ -108,7 +114,7 @@ class TaskParser {
         final double filterPct = Double.parseDouble(m.group(1));
         // Splice out the filter string:
         text = (text.substring(0, m.start(0)) + text.substring(m.end(0), text.length())).trim();
-        filter = new RandomQuery(filterPct);
+        filter = state.getRandomFilter(filterPct);
       } else {
         filter = null;
       }
@@ -176,6 +182,16 @@ class TaskParser {
         doDrillSideways = false;
       }
 
+      // Sorted tasks only: stop collecting each segment after topN
+      // hits, if the index is sorted by this sort:
+      final boolean earlyTerminate;
+      if (text.indexOf("+earlyTerminate") != -1) {
+        text = text.replace("+earlyTerminate", "");
+        earlyTerminate = true;
+      } else {
+        earlyTerminate = false;
+      }
+
       final Sort sort;
       Query query;
       final String group;
@@ -326,7 +342,16 @@ class TaskParser {
       Query query2;
 
       if (!drillDowns.isEmpty()) {
-        DrillDownQuery q = new DrillDownQuery(state.facetsConfig, query);
+        Query base = query;
+        if (doDrillSideways && filter != null) {
+          // DrillSideways needs the DrillDownQuery itself, so filter its base query instead:
+          base = new BooleanQuery.Builder()
+              .add(query, Occur.MUST)
+              .add(filter, Occur.FILTER)
+              .build();
+          filter = null;
+        }
+        DrillDownQuery q = new DrillDownQuery(state.facetsConfig, base);
         for(String s : drillDowns) {
           int i = s.indexOf('=');
           if (i == -1) {
@@ -365,7 +390,11 @@ class TaskParser {
         }
       */
 
-      task = new SearchTask(category, query2, sort, group, topN, doHilite, doStoredLoads, facets, doDrillSideways);
+      if (earlyTerminate && sort == null) {
+        throw new IllegalArgumentException("+earlyTerminate only applies to sorted tasks; got: " + origText);
+      }
+
+      task = new SearchTask(category, query2, sort, group, topN, doHilite, doStoredLoads, facets, doDrillSideways, earlyTerminate);
     }
 
     return task;
@@ -0,0 +1,510 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramData;
+
+// Per-category latency histograms.  Each search thread records
+// into its own histograms (no contention while tasks run), and
+// they are merged once the run finishes.  Service time is always
+// recorded; queue time (and response time = queue + service) only
+// when the task source stamps Task.recvTimeNS.
+//
+// Optionally each category is also considered warming up until the
+// coefficient of variation (stddev/mean) of its last warmupWindow
+// service times stays below warmupMaxCV for warmupWindow tasks in a
+// row; only tasks after that are reported.
+//
+// Optionally the CPU time and heap allocations of the thread running
+// each task are also summed per category, using ThreadMXBean.
+//
+// With time budgets, the latencies of tasks that finished within
+// their budget (Task.timedOut is false) are also kept separately:
+class TaskStats {
+
+  // Latencies are recorded in microseconds; anything slower than
+  // this is clamped:
+  private static final long MAX_MICROS = TimeUnit.HOURS.toMicros(1);
+
+  private final Latencies steady;
+
+  // Only used with warmup detection:
+  private final Latencies warmup;
+  private final double warmupMaxCV;
+  private final int warmupWindow;
+  private final Map<String,WarmupState> warmupStates = new ConcurrentHashMap<>();
+  private final long startNanos = System.nanoTime();
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private volatile boolean measureResources;
+  private volatile boolean timeBudgets;
+
+  public TaskStats(int numThreads) {
+    this(numThreads, 0.0, 0);
+  }
+
+  /** If warmupMaxCV is > 0, each category's tasks are excluded from the reported latencies until that
+   *  category reaches steady state. */
+  public TaskStats(int numThreads, double warmupMaxCV, int warmupWindow) {
+    steady = new Latencies(numThreads);
+    this.warmupMaxCV = warmupMaxCV;
+    this.warmupWindow = warmupWindow;
+    if (warmupMaxCV > 0.0) {
+      if (warmupWindow < 2) {
+        throw new IllegalArgumentException("warmupWindow must be >= 2; got: " + warmupWindow);
+      }
+      warmup = new Latencies(numThreads);
+    } else {
+      warmup = null;
+    }
+  }
+
+  private static final class Latencies {
+    final PerThreadHistograms service;
+    final PerThreadHistograms queue;
+    final PerThreadHistograms response;
+    final PerThreadResources resources;
+    // keyed by "category stage":
+    final PerThreadHistograms stages;
+    // service time of tasks that didn't time out:
+    final PerThreadHistograms finished;
+
+    Latencies(int numThreads) {
+      finished = new PerThreadHistograms(numThreads);
+      stages = new PerThreadHistograms(numThreads);
+      service = new PerThreadHistograms(numThreads);
+      queue = new PerThreadHistograms(numThreads);
+      response = new PerThreadHistograms(numThreads);
+      resources = new PerThreadResources(numThreads);
+    }
+
+    void record(Task task, String category, boolean timeBudgets) {
+      service.record(task.threadID, category, task.runTimeNanos);
+      if (timeBudgets && task.timedOut == false) {
+        finished.record(task.threadID, category, task.runTimeNanos);
+      }
+      if (task.recvTimeNS != 0) {
+        queue.record(task.threadID, category, task.queueTimeNanos);
+        response.record(task.threadID, category, task.queueTimeNanos + task.runTimeNanos);
+      }
+      if (task.stageNanos != null) {
+        for(Map.Entry<String,Long> ent : task.stageNanos.entrySet()) {
+          stages.record(task.threadID, category + " " + ent.getKey(), ent.getValue());
+        }
+      }
+      if (task.cpuTimeNanos != -1 || task.allocatedBytes != -1) {
+        resources.record(task.threadID, category, task.cpuTimeNanos, task.allocatedBytes);
+      }
+    }
+  }
+
+  // Per category: cpuCount, cpuNanos, allocCount, allocBytes:
+  private static final class PerThreadResources {
+    private final List<Map<String,long[]>> perThread;
+
+    PerThreadResources(int numThreads) {
+      perThread = new ArrayList<>();
+      for(int threadID=0;threadID<numThreads;threadID++) {
+        perThread.add(new TreeMap<String,long[]>());
+      }
+    }
+
+    private static long[] get(Map<String,long[]> sums, String category) {
+      long[] v = sums.get(category);
+      if (v == null) {
+        v = new long[4];
+        sums.put(category, v);
+      }
+      return v;
+    }
+
+    void record(int threadID, String category, long cpuNanos, long allocBytes) {
+      final long[] v = get(perThread.get(threadID), category);
+      if (cpuNanos != -1) {
+        v[0]++;
+        v[1] += cpuNanos;
+      }
+      if (allocBytes != -1) {
+        v[2]++;
+        v[3] += allocBytes;
+      }
+    }
+
+    void mergeInto(Map<String,long[]> merged) {
+      for(Map<String,long[]> sums : perThread) {
+        for(Map.Entry<String,long[]> ent : sums.entrySet()) {
+          final long[] v = get(merged, ent.getKey());
+          for(int i=0;i<v.length;i++) {
+            v[i] += ent.getValue()[i];
+          }
+        }
+      }
+    }
+  }
+
+  /** Turns on per-task CPU time and allocated bytes accounting; throws IllegalStateException if this JVM can't
+   *  measure either one. */
+  public void setMeasureResources(boolean measureResources) {
+    if (measureResources) {
+      boolean any = false;
+      if (threadBean.isCurrentThreadCpuTimeSupported()) {
+        threadBean.setThreadCpuTimeEnabled(true);
+        any = true;
+      }
+      if (threadBean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (sunThreadBean.isThreadAllocatedMemorySupported()) {
+          sunThreadBean.setThreadAllocatedMemoryEnabled(true);
+          any = true;
+        }
+      }
+      if (any == false) {
+        throw new IllegalStateException("this JVM cannot measure thread CPU time nor allocated bytes");
+      }
+    }
+    this.measureResources = measureResources;
+  }
+
+  /** If true, separately track the latencies of tasks that finished within their time budget. */
+  public void setTimeBudgets(boolean timeBudgets) {
+    this.timeBudgets = timeBudgets;
+  }
+
+  public boolean getMeasureResources() {
+    return measureResources;
+  }
+
+  /** Returns CPU time used by the current thread, or -1 if that's not supported. */
+  static long currentThreadCPUNanos() {
+    if (threadBean.isThreadCpuTimeEnabled() == false) {
+      return -1;
+    }
+    return threadBean.getCurrentThreadCpuTime();
+  }
+
+  /** Returns heap bytes allocated so far by the current thread, or -1 if that's not supported. */
+  static long currentThreadAllocatedBytes() {
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    } else {
+      return -1;
+    }
+  }
+
+  // Rolling window of one category's most recent service times, shared by
+  // all threads:
+  private static final class WarmupState {
+    private final long[] window;
+    private final double maxCV;
+    private int count;
+    private int belowCount;
+    private volatile boolean stable;
+
+    // Set once stable:
+    private int warmupCount;
+    private double stableCV;
+    private long stableNanos;
+
+    WarmupState(int windowSize, double maxCV) {
+      window = new long[windowSize];
+      this.maxCV = maxCV;
+    }
+
+    /** Returns true if the category was already stable before this task. */
+    synchronized boolean add(long nanos, long sinceStartNanos) {
+      if (stable) {
+        return true;
+      }
+      window[count % window.length] = nanos;
+      count++;
+      if (count >= window.length) {
+        final double cv = cv();
+        if (cv <= maxCV) {
+          belowCount++;
+          if (belowCount >= window.length) {
+            stable = true;
+            warmupCount = count;
+            stableCV = cv;
+            stableNanos = sinceStartNanos;
+          }
+        } else {
+          belowCount = 0;
+        }
+      }
+      return false;
+    }
+
+    private double cv() {
+      double sum = 0;
+      for(long v : window) {
+        sum += v;
+      }
+      final double mean = sum / window.length;
+      if (mean == 0) {
+        return 0.0;
+      }
+      double sumSq = 0;
+      for(long v : window) {
+        final double delta = v - mean;
+        sumSq += delta * delta;
+      }
+      return Math.sqrt(sumSq / window.length) / mean;
+    }
+  }
+
+  private static Histogram newHistogram() {
+    return new Histogram(MAX_MICROS, 3);
+  }
+
+  private static final class PerThreadHistograms {
+    private final List<Map<String,Histogram>> perThread;
+
+    PerThreadHistograms(int numThreads) {
+      perThread = new ArrayList<>();
+      for(int threadID=0;threadID<numThreads;threadID++) {
+        perThread.add(new TreeMap<String,Histogram>());
+      }
+    }
+
+    void record(int threadID, String category, long nanos) {
+      final Map<String,Histogram> histograms = perThread.get(threadID);
+      Histogram h = histograms.get(category);
+      if (h == null) {
+        h = newHistogram();
+        histograms.put(category, h);
+      }
+      h.recordValue(Math.max(0, Math.min(MAX_MICROS, nanos/1000)));
+    }
+
+    Map<String,Histogram> merge() {
+      final Map<String,Histogram> merged = new TreeMap<>();
+      for(Map<String,Histogram> histograms : perThread) {
+        for(Map.Entry<String,Histogram> ent : histograms.entrySet()) {
+          Histogram h = merged.get(ent.getKey());
+          if (h == null) {
+            h = newHistogram();
+            merged.put(ent.getKey(), h);
+          }
+          h.add(ent.getValue());
+        }
+      }
+      return merged;
+    }
+  }
+
+  /** Called by the thread that ran the task, once task.runTimeNanos and task.threadID are set. */
+  public void record(Task task) {
+    final String category = task.getCategory();
+    if (category == null) {
+      // END_TASK
+      return;
+    }
+    if (warmup == null) {
+      steady.record(task, category, timeBudgets);
+      return;
+    }
+    WarmupState state = warmupStates.get(category);
+    if (state == null) {
+      state = new WarmupState(warmupWindow, warmupMaxCV);
+      final WarmupState prev = warmupStates.putIfAbsent(category, state);
+      if (prev != null) {
+        state = prev;
+      }
+    }
+    if (state.add(task.runTimeNanos, System.nanoTime() - startNanos)) {
+      steady.record(task, category, timeBudgets);
+    } else {
+      warmup.record(task, category, timeBudgets);
+    }
+  }
+
+  /** Merges all threads' service time histograms, by category.  Only call this once all threads are done. */
+  public Map<String,Histogram> merge() {
+    return merge(steady.service, warmup == null ? null : warmup.service);
+  }
+
+  // Categories that never reached steady state report all their tasks:
+  private Map<String,Histogram> merge(PerThreadHistograms steadyHistograms, PerThreadHistograms warmupHistograms) {
+    final Map<String,Histogram> merged = steadyHistograms.merge();
+    if (warmupHistograms != null) {
+      for(Map.Entry<String,Histogram> ent : warmupHistograms.merge().entrySet()) {
+        // Stage keys are "category stage":
+        final int space = ent.getKey().indexOf(' ');
+        final WarmupState state = warmupStates.get(space == -1 ? ent.getKey() : ent.getKey().substring(0, space));
+        if (state == null || state.stable == false) {
+          Histogram h = merged.get(ent.getKey());
+          if (h == null) {
+            h = newHistogram();
+            merged.put(ent.getKey(), h);
+          }
+          h.add(ent.getValue());
+        }
+      }
+    }
+    return merged;
+  }
+
+  /** Prints per-category latency percentiles, in msec, next to the overall QPS. */
+  public void printSummary(PrintStream out, long elapsedNanos) {
+    final Map<String,Histogram> merged = merge();
+    long totalCount = 0;
+    for(Histogram h : merged.values()) {
+      totalCount += h.getHistogramData().getTotalCount();
+    }
+
+    if (warmup != null) {
+      printWarmup(out);
+    }
+
+    long warmupCount = 0;
+    if (warmup != null) {
+      for(WarmupState state : warmupStates.values()) {
+        if (state.stable) {
+          warmupCount += state.warmupCount;
+        }
+      }
+    }
+
+    final double elapsedSec = elapsedNanos/1000000000.0;
+    if (warmupCount == 0) {
+      out.println(String.format(Locale.ROOT, "\nCATEGORY LATENCY: %d tasks in %.1f sec = %.1f QPS", totalCount, elapsedSec,
+                                totalCount/elapsedSec));
+    } else {
+      // The elapsed time includes warmup, so the QPS counts warmup tasks too:
+      out.println(String.format(Locale.ROOT, "\nCATEGORY LATENCY: %d tasks (+%d warmup) in %.1f sec = %.1f QPS including warmup",
+                                totalCount, warmupCount, elapsedSec, (totalCount+warmupCount)/elapsedSec));
+      out.println("  (latencies exclude the warmup tasks)");
+    }
+    printPercentiles(out, merged);
+
+    final Map<String,Histogram> queueMerged = merge(steady.queue, warmup == null ? null : warmup.queue);
+    if (queueMerged.isEmpty() == false) {
+      out.println("\nCATEGORY QUEUE TIME:");
+      printPercentiles(out, queueMerged);
+      out.println("\nCATEGORY RESPONSE TIME (queue + service):");
+      printPercentiles(out, merge(steady.response, warmup == null ? null : warmup.response));
+    }
+
+    final Map<String,Histogram> stagesMerged = merge(steady.stages, warmup == null ? null : warmup.stages);
+    if (stagesMerged.isEmpty() == false) {
+      out.println("\nCATEGORY STAGE TIME:");
+      printPercentiles(out, stagesMerged);
+    }
+
+    if (measureResources) {
+      printResources(out);
+    }
+
+    if (timeBudgets) {
+      final Map<String,Histogram> finishedMerged = merge(steady.finished, warmup == null ? null : warmup.finished);
+      out.println("\nCATEGORY TIME BUDGET (tasks that finished within budget):");
+      printPercentiles(out, finishedMerged);
+      for(Map.Entry<String,Histogram> ent : merged.entrySet()) {
+        final long count = ent.getValue().getHistogramData().getTotalCount();
+        final Histogram finished = finishedMerged.get(ent.getKey());
+        final long timedOut = count - (finished == null ? 0 : finished.getHistogramData().getTotalCount());
+        out.println(String.format(Locale.ROOT, "  %s: %d of %d tasks timed out (%.1f%%)",
+                                  ent.getKey(), timedOut, count, 100.0*timedOut/count));
+      }
+    }
+  }
+
+  private void printResources(PrintStream out) {
+    final Map<String,long[]> merged = new TreeMap<>();
+    steady.resources.mergeInto(merged);
+    if (warmup != null) {
+      final Map<String,long[]> warmupMerged = new TreeMap<>();
+      warmup.resources.mergeInto(warmupMerged);
+      for(Map.Entry<String,long[]> ent : warmupMerged.entrySet()) {
+        final WarmupState state = warmupStates.get(ent.getKey());
+        if (state == null || state.stable == false) {
+          final long[] v = PerThreadResources.get(merged, ent.getKey());
+          for(int i=0;i<v.length;i++) {
+            v[i] += ent.getValue()[i];
+          }
+        }
+      }
+    }
+    // NOTE: includes intra-query work done on ResourceTrackingExecutor threads:
+    out.println("\nCATEGORY RESOURCES (per task, including intra-query executor threads):");
+    for(Map.Entry<String,long[]> ent : merged.entrySet()) {
+      final long[] v = ent.getValue();
+      final String cpu = v[0] == 0 ? "n/a" : String.format(Locale.ROOT, "%.3f msec", v[1]/1000000.0/v[0]);
+      final String alloc = v[2] == 0 ? "n/a" : String.format(Locale.ROOT, "%.1f KB", v[3]/1024.0/v[2]);
+      out.println("  " + ent.getKey() + ": cpu=" + cpu + " alloc=" + alloc);
+    }
+  }
+
+  private void printWarmup(PrintStream out) {
+    out.println(String.format(Locale.ROOT, "\nCATEGORY WARMUP: steady state once CV of last %d tasks stays <= %.3f for %d tasks",
+                              warmupWindow, warmupMaxCV, warmupWindow));
+    for(Map.Entry<String,WarmupState> ent : new TreeMap<>(warmupStates).entrySet()) {
+      final WarmupState state = ent.getValue();
+      synchronized(state) {
+        if (state.stable) {
+          out.println(String.format(Locale.ROOT, "  %s: stable after %d tasks at %.1f sec (CV=%.3f)",
+                                    ent.getKey(), state.warmupCount, state.stableNanos/1000000000.0, state.stableCV));
+        } else {
+          out.println(String.format(Locale.ROOT, "  %s: never stable after %d tasks (last CV=%.3f); reporting all tasks",
+                                    ent.getKey(), state.count, state.count >= state.window.length ? state.cv() : Double.NaN));
+        }
+      }
+    }
+  }
+
+  private static void printPercentiles(PrintStream out, Map<String,Histogram> histograms) {
+    for(Map.Entry<String,Histogram> ent : histograms.entrySet()) {
+      final HistogramData data = ent.getValue().getHistogramData();
+      out.println(String.format(Locale.ROOT, "  %s: count=%d avg=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f msec",
+                                ent.getKey(), data.getTotalCount(), data.getMean()/1000.0,
+                                data.getValueAtPercentile(50.0)/1000.0,
+                                data.getValueAtPercentile(90.0)/1000.0,
+                                data.getValueAtPercentile(99.0)/1000.0,
+                                data.getValueAtPercentile(99.9)/1000.0,
+                                data.getMaxValue()/1000.0));
+    }
+  }
+
+  /** Writes one pathPrefix.category.hgrm file per category, in msec (same format as ToHGRM), plus
+   *  pathPrefix.category.response.hgrm when queue times were recorded. */
+  public void writeHGRMFiles(String pathPrefix) throws FileNotFoundException {
+    writeHGRMFiles(merge(), pathPrefix, "");
+    writeHGRMFiles(merge(steady.response, warmup == null ? null : warmup.response), pathPrefix, ".response");
+  }
+
+  private static void writeHGRMFiles(Map<String,Histogram> histograms, String pathPrefix, String suffix) throws FileNotFoundException {
+    for(Map.Entry<String,Histogram> ent : histograms.entrySet()) {
+      try (PrintStream out = new PrintStream(pathPrefix + "." + ent.getKey() + suffix + ".hgrm")) {
+        ent.getValue().getHistogramData().outputPercentileDistribution(out, 50, 1000.0);
+      }
+    }
+  }
+}
@@ -18,23 +18,78 @@ package perf;
  */
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TaskThreads {  
 
+	/** How search tasks are mapped onto threads. */
+	public enum ExecutionMode {
+		// One dedicated platform thread per search thread, each pulling its own tasks:
+		THREADS,
+		// Fixed size thread pool:
+		POOL,
+		// Work-stealing ForkJoinPool:
+		FORKJOIN,
+		// New virtual thread per task (requires Java 21+).  Our own per
+		// thread state (PK lookup states) is kept per slot instead, but
+		// Lucene's thread-locals (e.g. each segment's stored fields and
+		// term vectors reader clones) are rebuilt for every task and
+		// left for GC, which adds some cost vs the other modes:
+		VIRTUAL
+	}
+
 	private final Thread[] threads;
+	private final ExecutorService executor;
 	final CountDownLatch startLatch = new CountDownLatch(1);
 	final CountDownLatch stopLatch;
 	final AtomicBoolean stop;
+	final AtomicReference<Throwable> failure = new AtomicReference<>();
 
 	public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads) {
-		threads = new Thread[numThreads];
-		stopLatch = new CountDownLatch(numThreads);
+		this(tasks, indexState, numThreads, ExecutionMode.THREADS, null);
+	}
+
+	/** In all modes other than {@link ExecutionMode#THREADS}, {@code numThreads} is the max number of tasks in flight at once.
+	 *  If stats is non-null, every finished task is recorded into it. */
+	public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads, ExecutionMode mode, TaskStats stats) {
 		stop = new AtomicBoolean(false);
-		for(int threadIDX=0;threadIDX<numThreads;threadIDX++) {
-			threads[threadIDX] = new TaskThread(startLatch, stopLatch, stop, tasks, indexState, threadIDX);
-			threads[threadIDX].start();
+		if (mode == ExecutionMode.THREADS) {
+			executor = null;
+			threads = new Thread[numThreads];
+			stopLatch = new CountDownLatch(numThreads);
+			for(int threadIDX=0;threadIDX<numThreads;threadIDX++) {
+				threads[threadIDX] = new TaskThread(startLatch, stopLatch, stop, tasks, indexState, stats, threadIDX);
+				threads[threadIDX].start();
+			}
+		} else {
+			switch (mode) {
+			case POOL:
+				executor = Executors.newFixedThreadPool(numThreads);
+				break;
+			case FORKJOIN:
+				executor = new ForkJoinPool(numThreads);
+				break;
+			case VIRTUAL:
+				executor = newVirtualThreadPerTaskExecutor();
+				break;
+			default:
+				throw new AssertionError("unhandled mode " + mode);
+			}
+			// A single dispatcher pulls tasks and hands them to the executor:
+			threads = new Thread[1];
+			stopLatch = new CountDownLatch(1);
+			threads[0] = new Dispatcher(this, tasks, indexState, stats, numThreads);
+			threads[0].setName("TaskDispatcher");
+			threads[0].start();
 		}
 	}
 
@@ -44,6 +99,7 @@ public class TaskThreads {
 
 	public void finish() throws InterruptedException {
 		stopLatch.await();
+		checkFailure();
 	}
 
 	public void stop() throws InterruptedException {
@@ -51,6 +107,141 @@ public class TaskThreads {
 		for (Thread t : threads) {
 			t.join();
 		}
+		if (executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		final Throwable t = failure.get();
+		if (t != null) {
+			throw new RuntimeException("search task failed", t);
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		// Reflection, so we still compile and run on older JDKs when virtual threads aren't used:
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalArgumentException("virtual threads require Java 21 or later; running " + System.getProperty("java.version"), roe);
+		}
+	}
+
+	/** Runs one task and records its timing; shared by all execution modes. */
+	static void runTask(Task task, TaskSource tasks, IndexState indexState, TaskStats stats, int threadID) throws IOException {
+		final long t0 = System.nanoTime();
+		if (task.recvTimeNS != 0) {
+			task.queueTimeNanos = t0-task.recvTimeNS;
+		}
+		// Set before go: only this task holds threadID while it runs, so go may key re-used state by it:
+		task.threadID = threadID;
+		final boolean measureResources = stats != null && stats.getMeasureResources();
+		long cpu0 = 0;
+		long alloc0 = 0;
+		// Resources used by intra-query executor threads for this task:
+		final AtomicLong[] helperUsage = new AtomicLong[] {new AtomicLong(), new AtomicLong()};
+		if (measureResources) {
+			cpu0 = TaskStats.currentThreadCPUNanos();
+			alloc0 = TaskStats.currentThreadAllocatedBytes();
+			ResourceTrackingExecutor.currentTaskUsage.set(helperUsage);
+		}
+		try {
+			task.go(indexState);
+		} finally {
+			ResourceTrackingExecutor.currentTaskUsage.remove();
+		}
+		// NOTE: measured before taskDone, so verification or sending
+		// the response isn't counted as search time:
+		task.runTimeNanos = System.nanoTime()-t0;
+		if (measureResources) {
+			if (cpu0 != -1) {
+				task.cpuTimeNanos = TaskStats.currentThreadCPUNanos()-cpu0 + helperUsage[0].get();
+			}
+			if (alloc0 != -1) {
+				task.allocatedBytes = TaskStats.currentThreadAllocatedBytes()-alloc0 + helperUsage[1].get();
+			}
+		}
+		try {
+			tasks.taskDone(task, t0-task.recvTimeNS, task.totalHitCount);
+		} catch (Exception e) {
+			System.out.println(Thread.currentThread().getName() + ": ignoring exc:");
+			e.printStackTrace();
+		}
+		if (stats != null) {
+			stats.record(task);
+		}
+	}
+
+	/** Pulls tasks from the source and submits each to the executor, allowing at most numSlots in flight.
+	 *  Each in-flight task holds a slot, which is reported as its threadID. */
+	private static class Dispatcher extends Thread {
+		private final TaskThreads parent;
+		private final TaskSource tasks;
+		private final IndexState indexState;
+		private final TaskStats stats;
+		private final int numSlots;
+		private final BlockingQueue<Integer> freeSlots;
+
+		public Dispatcher(TaskThreads parent, TaskSource tasks, IndexState indexState, TaskStats stats, int numSlots) {
+			this.parent = parent;
+			this.tasks = tasks;
+			this.indexState = indexState;
+			this.stats = stats;
+			this.numSlots = numSlots;
+			freeSlots = new ArrayBlockingQueue<>(numSlots);
+			for(int slot=0;slot<numSlots;slot++) {
+				freeSlots.add(slot);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				parent.startLatch.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			try {
+				while (!parent.stop.get() && parent.failure.get() == null) {
+					final int slot = freeSlots.take();
+					final Task task = tasks.nextTask();
+					if (task == null) {
+						// Done
+						freeSlots.put(slot);
+						break;
+					}
+					parent.executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									runTask(task, tasks, indexState, stats, slot);
+								} catch (Throwable t) {
+									parent.failure.compareAndSet(null, t);
+								} finally {
+									freeSlots.add(slot);
+								}
+							}
+						});
+				}
+
+				// Wait for all in-flight tasks to finish:
+				for(int slot=0;slot<numSlots;slot++) {
+					freeSlots.take();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				parent.failure.compareAndSet(null, e);
+			} finally {
+				parent.executor.shutdown();
+				parent.stopLatch.countDown();
+			}
+		}
 	}
 
 	private static class TaskThread extends Thread {
@@ -59,14 +250,16 @@ public class TaskThreads {
 		private final AtomicBoolean stop;
 		private final TaskSource tasks;
 		private final IndexState indexState;
+		private final TaskStats stats;
 		private final int threadID;
 
-		public TaskThread(CountDownLatch startLatch, CountDownLatch stopLatch, AtomicBoolean stop, TaskSource tasks, IndexState indexState, int threadID) {
+		public TaskThread(CountDownLatch startLatch, CountDownLatch stopLatch, AtomicBoolean stop, TaskSource tasks, IndexState indexState, TaskStats stats, int threadID) {
 			this.startLatch = startLatch;
 			this.stopLatch = stopLatch;
 			this.stop = stop;
 			this.tasks = tasks;
 			this.indexState = indexState;
+			this.stats = stats;
 			this.threadID = threadID;
 		}
 
@@ -86,20 +279,11 @@ public class TaskThreads {
 						// Done
 						break;
 					}
-					final long t0 = System.nanoTime();
 					try {
-						task.go(indexState);
+						runTask(task, tasks, indexState, stats, threadID);
 					} catch (IOException ioe) {
 						throw new RuntimeException(ioe);
 					}
-					try {
-						tasks.taskDone(task, t0-task.recvTimeNS, task.totalHitCount);
-					} catch (Exception e) {
-						System.out.println(Thread.currentThread().getName() + ": ignoring exc:");
-						e.printStackTrace();
-					}
-					task.runTimeNanos = System.nanoTime()-t0;
-					task.threadID = threadID;
 				}
 			} catch (Exception e) {
 				throw new RuntimeException(e);
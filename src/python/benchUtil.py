@@ -517,6 +517,12 @@ def parseResults(resultsFiles):
 
       elif line.startswith('TASK: PK'):
         task = PKLookupTask()
+        if line.startswith('TASK: PKBatched'):
+          # same ids, looked up in sorted batches (-pkBatched)
+          task.cat = 'PKLookupBatched'
+        elif line.startswith('TASK: PKFiltered'):
+          # same ids, skipping segments by Bloom filter (-pkFilter)
+          task.cat = 'PKLookupFiltered'
         task.pkOrd = rePKOrd.search(line).group(1)
         task.msec = float(f.readline().strip().split()[0])
         task.threadID = int(f.readline().strip().split()[1])
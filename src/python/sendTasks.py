@@ -39,7 +39,13 @@ sys.setcheckinterval(10)
 # We don't create cyclic garbage, and we want no hiccups:
 gc.disable()
 
-MAX_BYTES = 70
+# Wire protocol (see RemoteTaskSource.java), all ints big-endian:
+#   request:  int taskID, int byteCount, byteCount bytes of UTF-8 task text
+#   response: int taskID, int totalHitCount, long queueTimeNS
+RESPONSE_BYTES = 16
+
+# The results file records at most this many bytes of each task:
+MAX_SAVED_TASK_BYTES = 255
 
 # TODO
 #   - generalize this to send requests via http too
@@ -83,6 +89,7 @@ class Results:
     self.fOut = open(savFile, 'wb')
 
   def add(self, taskString, totalHitCount, timestamp, latencyMS, queueTimeMS):
+    taskString = taskString[:MAX_SAVED_TASK_BYTES]
     self.current.write(struct.pack('fffIB', timestamp, latencyMS, queueTimeMS, totalHitCount, len(taskString)))
     self.current.write(taskString)
     if self.current.tell() >= 64*1024:
@@ -121,7 +128,7 @@ class SendTasks:
 
   def send(self, startTime, task):
     self.sent[self.taskID] = (startTime, task)
-    self.queue.put(task)
+    self.queue.put(struct.pack('>ii', self.taskID, len(task)) + task)
     self.taskID += 1
 
   def gatherResponses(self):
@@ -142,12 +149,10 @@ class SendTasks:
     
     while True:
       result = ''
-      while len(result) < 30:
-        result = result + self.sock.recv(30 - len(result))
-      taskID, totalHitCount, queueTimeMS = result.split(':')
-      taskID = int(taskID)
-      totalHitCount = int(totalHitCount)
-      queueTimeMS = float(queueTimeMS)
+      while len(result) < RESPONSE_BYTES:
+        result = result + self.sock.recv(RESPONSE_BYTES - len(result))
+      taskID, totalHitCount, queueTimeNS = struct.unpack('>iiq', result)
+      queueTimeMS = queueTimeNS/1000000.0
       endTime = time.time()
       intSec = int(endTime)
       if intSec != lastSec:
@@ -164,6 +169,9 @@ class SendTasks:
         print 'WARNING: ignore bad return taskID=%s' % taskID
         continue
       del self.sent[taskID]
+      if totalHitCount == -1:
+        print 'WARNING: server failed to parse task "%s"' % taskString
+        totalHitCount = 0
       latencyMS = (endTime-taskStartTime)*1000
       queueTimeStats.add(queueTimeMS)
       totalTimeStats.add(latencyMS)
@@ -241,11 +249,7 @@ def run(tasksFile, serverHost, serverPort, meanQPS, numTasksPerCat, runTimeSec,
     l = l.strip()
     if l == '':
       continue
-    s = l
-    if len(s) > MAX_BYTES:
-      raise RuntimeError('task is > %d bytes: %s' % (MAX_BYTES, l))
-    s = s + ((MAX_BYTES-len(s))*' ')
-    taskStrings.append(s)
+    taskStrings.append(l)
 
   r = random.Random(0)
   r.shuffle(taskStrings)